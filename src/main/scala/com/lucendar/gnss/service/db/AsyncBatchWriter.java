@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 异步批量写入器。
+ * <p>
+ * 数据经 `submit()` 进入有界队列后立即返回，由后台写入线程按批大小或时间间隔触发 `flush()`。
+ * 写入线程数由 `BatchWriterConfig.writerCount` 指定，每个线程拥有独立的队列，数据按 `shardOf()` 分派，
+ * 因此同一分片键的数据总是按提交顺序由同一个线程写入。
+ * <p>
+ * 队列满时的处理由 `BatchWriterConfig.overflowPolicy` 决定：`REJECT` 时 `submit()` 返回 false，调用者可据此实施背压
+ * （降速、丢弃或转存）；`DROP_OLDEST` 时丢弃队列中最旧的数据，被丢弃的数据通过 `onDropped()` 通知子类。
+ *
+ * @param <T> 数据类型
+ */
+public abstract class AsyncBatchWriter<T> implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.asyncBatchWriter");
+
+    /**
+     * 队列占用超过该比例时，`isBackpressured()` 返回 true
+     */
+    private static final double HIGH_WATERMARK = 0.8;
+
+    protected final BatchWriterConfig config;
+    private final String name;
+    private final Shard<T>[] shards;
+    private final int highWatermark;
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    private volatile boolean closed;
+
+    private static final class Shard<T> {
+        final int index;
+        final ArrayBlockingQueue<T> queue;
+        Thread thread;
+
+        Shard(int index, int capacity) {
+            this.index = index;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected AsyncBatchWriter(@NonNull String name, @NonNull BatchWriterConfig config) {
+        this.name = name;
+        this.config = config;
+        this.shards = new Shard[config.writerCount()];
+        for (int i = 0; i < shards.length; i++)
+            shards[i] = new Shard<>(i, config.queueCapacity());
+        this.highWatermark = (int) (config.queueCapacity() * HIGH_WATERMARK);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BatchWriterConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * 启动写入线程
+     */
+    public synchronized void start() {
+        for (Shard<T> shard : shards) {
+            if (shard.thread != null)
+                continue;
+
+            Thread t = new Thread(() -> runShard(shard), name + "-" + shard.index);
+            t.setDaemon(true);
+            shard.thread = t;
+            t.start();
+        }
+    }
+
+    /**
+     * 提交数据。本方法不阻塞。
+     *
+     * @param item 所要写入的数据
+     * @return 是否已接受。写入器已关闭，或队列已满且策略为 `REJECT` 时返回 false。
+     */
+    public boolean submit(@NonNull T item) {
+        if (closed)
+            return false;
+
+        ArrayBlockingQueue<T> queue = shardFor(item).queue;
+        if (queue.offer(item))
+            return true;
+
+        if (config.overflowPolicy() != BatchWriterOverflowPolicy.DROP_OLDEST)
+            return false;
+
+        do {
+            T oldest = queue.poll();
+            if (oldest != null) {
+                droppedCount.incrementAndGet();
+                try {
+                    onDropped(oldest);
+                } catch (Throwable t) {
+                    LOGGER.error("[{}] Error occurred when handle dropped item.", name, t);
+                }
+            }
+        } while (!queue.offer(item));
+
+        return true;
+    }
+
+    /**
+     * 队列满时丢弃了最旧的数据。本方法在调用 `submit()` 的线程中调用，不应阻塞。
+     *
+     * @param item 被丢弃的数据
+     */
+    protected void onDropped(T item) {
+    }
+
+    /**
+     * @return 因队列满而丢弃的数据总数
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * 是否处于背压状态，即任一写入线程的队列占用超过高水位。
+     *
+     * @return 是否处于背压状态
+     */
+    public boolean isBackpressured() {
+        for (Shard<T> shard : shards) {
+            if (shard.queue.size() >= highWatermark)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * 取队列中待写入的数据数量
+     *
+     * @return 待写入的数据数量
+     */
+    public int pending() {
+        int r = 0;
+        for (Shard<T> shard : shards)
+            r += shard.queue.size();
+        return r;
+    }
+
+    private Shard<T> shardFor(T item) {
+        if (shards.length == 1)
+            return shards[0];
+
+        return shards[(shardOf(item) & 0x7FFFFFFF) % shards.length];
+    }
+
+    /**
+     * 计算数据的分片键。相同分片键的数据由同一个写入线程处理。
+     *
+     * @param item 数据
+     * @return 分片键，通常为某个属性的 hash 值
+     */
+    protected int shardOf(T item) {
+        return item.hashCode();
+    }
+
+    /**
+     * 写入一批数据。本方法在写入线程中调用，同一 `shard` 不会被并发调用。
+     *
+     * @param shard 写入线程序号，从 0 开始
+     * @param batch 所要写入的数据，本方法返回后该列表会被清空复用
+     */
+    protected abstract void flush(int shard, @NonNull List<T> batch);
+
+    private void safeFlush(Shard<T> shard, List<T> batch) {
+        try {
+            flush(shard.index, batch);
+        } catch (Throwable t) {
+            LOGGER.error("[{}] Error occurred when flush batch of {} items.", name, batch.size(), t);
+        }
+        batch.clear();
+    }
+
+    private void runShard(Shard<T> shard) {
+        final int batchSize = config.batchSize();
+        final long interval = config.flushIntervalMillis();
+        final List<T> batch = new ArrayList<>(batchSize);
+
+        long deadline = System.currentTimeMillis() + interval;
+        while (true) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait > 0 && batch.size() < batchSize) {
+                try {
+                    T item = shard.queue.poll(wait, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        batch.add(item);
+                        shard.queue.drainTo(batch, batchSize - batch.size());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            if (batch.size() >= batchSize || System.currentTimeMillis() >= deadline) {
+                if (!batch.isEmpty())
+                    safeFlush(shard, batch);
+
+                deadline = System.currentTimeMillis() + interval;
+            }
+
+            if (closed && shard.queue.isEmpty())
+                break;
+        }
+
+        // drain remaining
+        while (true) {
+            shard.queue.drainTo(batch, batchSize - batch.size());
+            if (batch.isEmpty())
+                break;
+
+            safeFlush(shard, batch);
+        }
+    }
+
+    /**
+     * 关闭写入器。已提交的数据会在写入线程退出前写入完毕。
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        for (Shard<T> shard : shards) {
+            Thread t = shard.thread;
+            if (t != null) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
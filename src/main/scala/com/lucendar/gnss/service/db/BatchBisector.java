@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 批量写入的故障隔离。
+ * <p>
+ * 批量写入（如 COPY）失败且错误由单条记录本身引起（见 `isDataError()`）时，将批次二分后分别重试，
+ * 直到定位到出错的单条记录，将其放入 `DeadLetterStore`，其余记录正常写入。批次中有 k 条坏记录时，重试次数为 O(k log n)。
+ * 二分深度不超过 `maxDepth`，超过时按非数据错误处理。
+ * <p>
+ * 其它错误（如连接断开、记录没有对应的分区）与单条记录无关，重试无益，此时停止写入，尚未写入的记录通过
+ * `Result.getUnwritten()` 返回，由调用者按原有方式处理（如写入转存日志）。
+ */
+public final class BatchBisector {
+
+    /**
+     * 默认的最大二分深度。1000 条以内的批次可以定位到单条记录
+     */
+    public static final int DEFAULT_MAX_DEPTH = 10;
+
+    /**
+     * 由单条记录本身引起的 SQLState。
+     * 23514（check_violation）不在其中：记录没有对应的分区时 PostgreSQL 也返回该错误，此时整批记录都无法写入。
+     */
+    private static final Set<String> ROW_ERROR_STATES = Set.of(
+            "22001", // string_data_right_truncation
+            "22003", // numeric_value_out_of_range
+            "22004", // null_value_not_allowed
+            "22007", // invalid_datetime_format
+            "22008", // datetime_field_overflow
+            "22012", // division_by_zero
+            "22021", // character_not_in_repertoire
+            "22026", // string_data_length_mismatch
+            "22P02", // invalid_text_representation
+            "22P05", // untranslatable_character
+            "23502", // not_null_violation
+            "23503", // foreign_key_violation
+            "23505", // unique_violation
+            "23P01"  // exclusion_violation
+    );
+
+    private BatchBisector() {
+    }
+
+    /**
+     * 批量写入操作
+     *
+     * @param <T> 记录的类型
+     */
+    @FunctionalInterface
+    public interface BatchAction<T> {
+        /**
+         * 写入数组前部的 `count` 条记录，要么全部写入，要么全部不写入。
+         */
+        void apply(T[] rows, int count) throws Exception;
+    }
+
+    /**
+     * 执行结果
+     *
+     * @param <T> 记录的类型
+     */
+    public static final class Result<T> {
+        private int attempts;
+        private int deadLettered;
+        private Throwable error;
+        private final List<T> unwritten = new ArrayList<>();
+        private final List<T> deadLetters = new ArrayList<>();
+        private final List<Throwable> deadLetterErrors = new ArrayList<>();
+
+        /**
+         * 一次写入全部成功的结果
+         */
+        public static <T> Result<T> success() {
+            var r = new Result<T>();
+            r.attempts = 1;
+            return r;
+        }
+
+        /**
+         * 一次写入全部失败的结果
+         *
+         * @param rows  记录数组
+         * @param count 记录数量
+         * @param error 写入时的异常
+         */
+        public static <T> Result<T> failure(@NonNull T[] rows, int count, @NonNull Throwable error) {
+            var r = new Result<T>();
+            r.attempts = 1;
+            r.error = error;
+            r.unwritten.addAll(Arrays.asList(rows).subList(0, count));
+            return r;
+        }
+
+        /**
+         * @return 写入操作的执行次数
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return 放入死信存储的记录数
+         */
+        public int getDeadLettered() {
+            return deadLettered;
+        }
+
+        /**
+         * @return 放入死信存储的记录
+         */
+        public List<T> getDeadLetters() {
+            return deadLetters;
+        }
+
+        /**
+         * @return 放入死信存储的记录的写入异常，与 `getDeadLetters()` 一一对应
+         */
+        public List<Throwable> getDeadLetterErrors() {
+            return deadLetterErrors;
+        }
+
+        /**
+         * @return 导致停止写入的非数据错误，全部记录都已写入或放入死信存储时为 null
+         */
+        @Nullable
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return 因非数据错误而未写入的记录
+         */
+        public List<T> getUnwritten() {
+            return unwritten;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    /**
+     * 取异常链中第一个 `SQLException` 的 SQLState
+     *
+     * @param t 异常
+     * @return SQLState，不存在时返回 null
+     */
+    @Nullable
+    public static String sqlStateOf(@Nullable Throwable t) {
+        while (t != null) {
+            if (t instanceof SQLException e && e.getSQLState() != null)
+                return e.getSQLState();
+
+            if (t.getCause() == t)
+                break;
+            t = t.getCause();
+        }
+
+        return null;
+    }
+
+    /**
+     * 判断错误是否由单条记录本身引起，如字符串过长、数值越界、违反唯一约束等
+     *
+     * @param t 异常
+     * @return 由单条记录本身引起时返回 true
+     */
+    public static boolean isDataError(@Nullable Throwable t) {
+        String state = sqlStateOf(t);
+        return state != null && ROW_ERROR_STATES.contains(state);
+    }
+
+    /**
+     * 写入一批记录，出现数据错误时二分隔离出错的记录
+     *
+     * @param rows            记录数组
+     * @param count           记录数量
+     * @param action          批量写入操作
+     * @param deadLetterStore 死信存储
+     * @param maxDepth        最大二分深度
+     * @param <T>             记录的类型
+     * @return 执行结果
+     */
+    public static <T> Result<T> execute(@NonNull T[] rows,
+                                        int count,
+                                        @NonNull BatchAction<T> action,
+                                        @NonNull DeadLetterStore<T> deadLetterStore,
+                                        int maxDepth) {
+        if (maxDepth < 0)
+            throw new IllegalArgumentException("maxDepth");
+
+        var r = new Result<T>();
+        if (count > 0)
+            execute(rows, 0, count, 0, maxDepth, action, deadLetterStore, r);
+        return r;
+    }
+
+    /**
+     * 以默认的最大二分深度写入一批记录
+     */
+    public static <T> Result<T> execute(@NonNull T[] rows,
+                                        int count,
+                                        @NonNull BatchAction<T> action,
+                                        @NonNull DeadLetterStore<T> deadLetterStore) {
+        return execute(rows, count, action, deadLetterStore, DEFAULT_MAX_DEPTH);
+    }
+
+    private static <T> void execute(T[] rows, int from, int to, int depth, int maxDepth,
+                                    BatchAction<T> action, DeadLetterStore<T> deadLetterStore, Result<T> r) {
+        if (r.error != null) {
+            r.unwritten.addAll(Arrays.asList(rows).subList(from, to));
+            return;
+        }
+
+        try {
+            r.attempts++;
+            if (from == 0)
+                action.apply(rows, to);
+            else
+                action.apply(Arrays.copyOfRange(rows, from, to), to - from);
+            return;
+        } catch (Throwable t) {
+            isolate(rows, from, to, depth, maxDepth, t, action, deadLetterStore, r);
+        }
+    }
+
+    private static <T> void isolate(T[] rows, int from, int to, int depth, int maxDepth, Throwable error,
+                                    BatchAction<T> action, DeadLetterStore<T> deadLetterStore, Result<T> r) {
+        if (!isDataError(error) || (to - from > 1 && depth >= maxDepth)) {
+            r.error = error;
+            r.unwritten.addAll(Arrays.asList(rows).subList(from, to));
+            return;
+        }
+
+        if (to - from == 1) {
+            deadLetterStore.put(rows[from], sqlStateOf(error), error);
+            r.deadLettered++;
+            r.deadLetters.add(rows[from]);
+            r.deadLetterErrors.add(error);
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        execute(rows, from, mid, depth + 1, maxDepth, action, deadLetterStore, r);
+        execute(rows, mid, to, depth + 1, maxDepth, action, deadLetterStore, r);
+    }
+}
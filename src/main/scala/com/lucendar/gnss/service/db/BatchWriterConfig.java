@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+/**
+ * 异步批量写入器配置
+ *
+ * @param writerCount         并行写入线程数，每个线程有独立的队列
+ * @param queueCapacity       每个写入线程的队列容量
+ * @param batchSize           批大小，队列中累积到该数量时立即写入
+ * @param flushIntervalMillis 最大写入间隔，单位：毫秒。未满一批的数据最多等待该时长后写入
+ * @param overflowPolicy      队列满时的处理策略
+ */
+public record BatchWriterConfig(int writerCount, int queueCapacity, int batchSize, long flushIntervalMillis,
+                                BatchWriterOverflowPolicy overflowPolicy) {
+
+    public static final BatchWriterConfig DEFAULT = new BatchWriterConfig(4, 20_000, 1000, 500);
+
+    public BatchWriterConfig {
+        if (writerCount <= 0)
+            throw new IllegalArgumentException("writerCount");
+        if (queueCapacity <= 0)
+            throw new IllegalArgumentException("queueCapacity");
+        if (batchSize <= 0)
+            throw new IllegalArgumentException("batchSize");
+        if (flushIntervalMillis <= 0)
+            throw new IllegalArgumentException("flushIntervalMillis");
+        if (overflowPolicy == null)
+            throw new IllegalArgumentException("overflowPolicy");
+    }
+
+    public BatchWriterConfig(int writerCount, int queueCapacity, int batchSize, long flushIntervalMillis) {
+        this(writerCount, queueCapacity, batchSize, flushIntervalMillis, BatchWriterOverflowPolicy.REJECT);
+    }
+
+    public BatchWriterConfig withWriterCount(int writerCount) {
+        return new BatchWriterConfig(writerCount, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+    }
+
+    public BatchWriterConfig withQueueCapacity(int queueCapacity) {
+        return new BatchWriterConfig(writerCount, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+    }
+
+    public BatchWriterConfig withBatchSize(int batchSize) {
+        return new BatchWriterConfig(writerCount, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+    }
+
+    public BatchWriterConfig withFlushIntervalMillis(long flushIntervalMillis) {
+        return new BatchWriterConfig(writerCount, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+    }
+
+    public BatchWriterConfig withOverflowPolicy(BatchWriterOverflowPolicy overflowPolicy) {
+        return new BatchWriterConfig(writerCount, queueCapacity, batchSize, flushIntervalMillis, overflowPolicy);
+    }
+}
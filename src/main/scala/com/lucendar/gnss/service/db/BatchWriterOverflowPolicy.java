@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+/**
+ * 异步批量写入器队列满时的处理策略
+ */
+public enum BatchWriterOverflowPolicy {
+
+    /**
+     * 拒绝新数据，`submit()` 返回 false
+     */
+    REJECT,
+
+    /**
+     * 丢弃队列中最旧的数据以接受新数据，`submit()` 总是返回 true（写入器已关闭时除外）
+     */
+    DROP_OLDEST
+}
@@ -7,6 +7,7 @@ package com.lucendar.gnss.service.db;
 
 import com.lucendar.strm.common.types.CommLog;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
@@ -17,7 +18,8 @@ import java.util.List;
 public interface CommLogDao {
 
     /**
-     * 查询终端通讯日志
+     * 查询终端通讯日志，结果按时间升序排列。偏移量较大时数据库需扫描并丢弃之前的全部记录，翻页请使用
+     * `qryGatewayCommLogPage()`。
      *
      * @param startTs 开始时间
      * @param appId   AppId
@@ -37,7 +39,54 @@ public interface CommLogDao {
             int offset);
 
     /**
-     * 保存通讯日志。注意，本方法内部管理事务
+     * 查询终端的最近通讯日志，结果按时间升序排列。与 `qryGatewayCommLog()` 相同，但实现可以从最近通讯日志缓存返回结果
+     * （见 `RecentCommLogCache`），此时返回的日志 `id` 为 null，不能用于续查或按 ID 引用日志。
+     * <p>
+     * 默认实现调用 `qryGatewayCommLog()`。
+     *
+     * @param startTs 开始时间
+     * @param appId   AppId
+     * @param simNo   终端识别号
+     * @param retData 是否返回 `data` 属性。为 false 时，不返回 `data` 而返回 `dataSz`
+     * @param limit   返回的最大记录数
+     * @param offset  返回结果的偏移量
+     * @return 通讯日志列表
+     */
+    @Transactional
+    default List<CommLog> qryRecentCommLogs(
+            long startTs,
+            @NonNull String appId,
+            @NonNull String simNo,
+            boolean retData,
+            int limit,
+            int offset) {
+        return qryGatewayCommLog(startTs, appId, simNo, retData, limit, offset);
+    }
+
+    /**
+     * 分页查询终端通讯日志，结果按时间、ID 升序排列。以上一页最后一条日志的位置续查，查询代价与页码无关，
+     * 翻页期间新增的日志不会导致结果重复或遗漏。
+     *
+     * @param startTs   开始时间
+     * @param appId     AppId
+     * @param simNo     终端识别号
+     * @param retData   是否返回 `data` 属性。为 false 时，不返回 `data` 而返回 `dataSz`
+     * @param limit     每页的最大记录数
+     * @param pageToken 上一页返回的 `CommLogPage.getNextPageToken()`，为 null 时查询第一页
+     * @return 一页通讯日志
+     * @throws IllegalArgumentException `pageToken` 无效
+     */
+    @Transactional
+    CommLogPage qryGatewayCommLogPage(
+            long startTs,
+            @NonNull String appId,
+            @NonNull String simNo,
+            boolean retData,
+            int limit,
+            @Nullable String pageToken);
+
+    /**
+     * 保存通讯日志。注意，本方法内部管理事务。高频写入请使用 `CommLogSaver`
      *
      * @param commLogs 所要保存的通讯日志列表
      */
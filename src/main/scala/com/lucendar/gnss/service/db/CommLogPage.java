@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import com.lucendar.strm.common.types.CommLog;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * 通讯日志分页查询的结果
+ */
+public class CommLogPage {
+
+    private final List<CommLog> items;
+    private final String nextPageToken;
+
+    public CommLogPage(@NonNull List<CommLog> items, @Nullable String nextPageToken) {
+        this.items = items;
+        this.nextPageToken = nextPageToken;
+    }
+
+    /**
+     * @return 本页的通讯日志，按时间升序排列
+     */
+    public List<CommLog> getItems() {
+        return items;
+    }
+
+    /**
+     * @return 下一页的令牌，没有下一页时返回 null
+     */
+    @Nullable
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public boolean hasNext() {
+        return nextPageToken != null;
+    }
+
+    /**
+     * 分页位置，即上一页最后一条日志的时间和 ID
+     *
+     * @param tsMicros 时间，epoch 微秒
+     * @param id       日志 ID
+     */
+    public record Position(long tsMicros, @NonNull String id) {
+
+        /**
+         * @return 不透明的令牌
+         */
+        public String encode() {
+            var s = tsMicros + ":" + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 解析令牌
+         *
+         * @param token 令牌
+         * @return 分页位置
+         * @throws IllegalArgumentException 令牌无效
+         */
+        public static Position decode(@NonNull String token) {
+            try {
+                var s = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+                int idx = s.indexOf(':');
+                if (idx <= 0 || idx == s.length() - 1)
+                    throw new IllegalArgumentException("Invalid page token: " + token + ".");
+
+                return new Position(Long.parseLong(s.substring(0, idx)), s.substring(idx + 1));
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException included
+                throw new IllegalArgumentException("Invalid page token: " + token + ".", e);
+            }
+        }
+    }
+}
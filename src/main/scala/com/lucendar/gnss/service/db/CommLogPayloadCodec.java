@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 通讯日志报文（`t_comm_log.f_data`）的压缩编解码器。
+ * <p>
+ * 压缩后的格式：
+ * <pre>
+ * 0x1F 'G' 'C' | 版本 (1 字节) | 原始长度 (int32, 大端) | raw deflate 数据
+ * </pre>
+ * 版本标识压缩所用的预置字典。JT808 报文以 0x7E 开头，不会与压缩格式的标记冲突，因此未压缩的数据（包括压缩前保存的数据）
+ * 原样存储，解码时原样返回。以压缩格式标记开头的原始数据总是被压缩，以免解码时被误认为压缩格式。
+ * 解码失败（版本未知、原始长度超过 {@link #MAX_RATIO} 倍压缩数据长度或数据损坏）时原样返回数据。
+ * <p>
+ * 压缩使用预置字典，即使单个短报文也能获得较好的压缩率。内置字典包含常见的消息头、消息 ID、附加信息项和零填充；
+ * 也可以用 `trainDictionary()` 以实际报文训练字典，配合自定义版本号使用。
+ * 压缩后不小于原始数据，或数据短于 `minSize` 时不压缩。
+ * <p>
+ * 本类是线程安全的。
+ */
+public class CommLogPayloadCodec {
+
+    public static final byte MAGIC_0 = 0x1F;
+    public static final byte MAGIC_1 = 'G';
+    public static final byte MAGIC_2 = 'C';
+
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * 原始长度与压缩数据长度之比的上限（deflate 的最大压缩率约为 1032:1）。超过时认为数据不是压缩格式
+     */
+    public static final int MAX_RATIO = 1032;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.commLogPayloadCodec");
+
+    /**
+     * 内置字典的版本
+     */
+    public static final int BUILTIN_VERSION = 1;
+
+    private static final byte[] BUILTIN_DICTIONARY = buildBuiltinDictionary();
+
+    /**
+     * 使用内置字典的编解码器
+     */
+    public static final CommLogPayloadCodec DEFAULT =
+            new CommLogPayloadCodec(BUILTIN_VERSION, BUILTIN_DICTIONARY, Deflater.BEST_SPEED, 32);
+
+    private final int version;
+    private final byte[] dictionary;
+    private final int level;
+    private final int minSize;
+
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    /**
+     * @param version    版本，1 为内置字典保留，自定义字典使用 2～255
+     * @param dictionary 预置字典，最常见的内容应放在末尾
+     * @param level      压缩级别，见 `Deflater`
+     * @param minSize    压缩的最小数据长度，必须大于 {@link #HEADER_SIZE}
+     */
+    public CommLogPayloadCodec(int version, @NonNull byte[] dictionary, int level, int minSize) {
+        if (version < 1 || version > 255)
+            throw new IllegalArgumentException("version");
+        if (version == BUILTIN_VERSION && !Arrays.equals(dictionary, BUILTIN_DICTIONARY))
+            throw new IllegalArgumentException("Version " + BUILTIN_VERSION + " is reserved for the builtin dictionary.");
+        if (minSize <= HEADER_SIZE)
+            throw new IllegalArgumentException("minSize must be greater than " + HEADER_SIZE + ".");
+
+        this.version = version;
+        this.dictionary = dictionary.clone();
+        this.level = level;
+        this.minSize = minSize;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level, true));
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    private static byte[] buildBuiltinDictionary() {
+        var out = new ByteArrayOutputStream();
+
+        // zero padding and reserved fields
+        out.writeBytes(new byte[64]);
+
+        // common additional info items of location report (id, length)
+        int[][] addtItems = {
+                {0x01, 4}, {0x02, 2}, {0x03, 2}, {0x25, 4}, {0x2A, 2}, {0x2B, 4}, {0x30, 1}, {0x31, 1},
+                {0x14, 4}, {0x15, 1}, {0x16, 4}, {0x17, 2}, {0x18, 3}
+        };
+        for (int[] item : addtItems) {
+            out.write(item[0]);
+            out.write(item[1]);
+            out.writeBytes(new byte[item[1]]);
+        }
+
+        // message headers: 0x7E, message id, body properties
+        int[] msgIds = {
+                0x8001, 0x0001, 0x0100, 0x8100, 0x0102, 0x0704, 0x0900, 0x8900, 0x0801, 0x0800, 0x8103, 0x8104,
+                0x0104, 0x0201, 0x8201, 0x0002, 0x0200
+        };
+        for (int msgId : msgIds) {
+            out.write(0x7E);
+            out.write(msgId >>> 8);
+            out.write(msgId);
+            out.write(0x00);
+        }
+
+        // JT/T 808-2019 header: version flag, protocol version, 10-byte BCD phone number
+        out.writeBytes(new byte[]{0x7E, 0x02, 0x00, 0x40, 0x01, 0x00, 0x00, 0x00, 0x00, 0x01});
+
+        // the most common: JT/T 808-2013 location report header with 6-byte BCD phone number
+        out.writeBytes(new byte[]{0x7E, 0x02, 0x00, 0x00, 0x00, 0x01});
+        out.writeBytes(new byte[]{0x7E, 0x00, 0x02, 0x00, 0x00, 0x01});
+        out.writeBytes(new byte[]{0x7E, 0x02, 0x00, 0x00});
+
+        return out.toByteArray();
+    }
+
+    /**
+     * 以报文样本训练预置字典。统计样本中出现次数最多的 8 字节片段，按出现次数升序排列（最常见的在末尾）。
+     *
+     * @param samples 报文样本
+     * @param maxSize 字典的最大长度
+     * @return 字典
+     */
+    public static byte[] trainDictionary(@NonNull List<byte[]> samples, int maxSize) {
+        final int k = 8;
+        var counts = new HashMap<ByteSeq, int[]>();
+        for (byte[] sample : samples) {
+            for (int i = 0; i + k <= sample.length; i += k / 2)
+                counts.computeIfAbsent(new ByteSeq(Arrays.copyOfRange(sample, i, i + k)), x -> new int[1])[0]++;
+        }
+
+        var entries = new ArrayList<>(counts.entrySet());
+        entries.removeIf(e -> e.getValue()[0] < 2);
+        entries.sort((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]));
+
+        int n = Math.min(entries.size(), maxSize / k);
+        var out = new ByteArrayOutputStream(n * k);
+        for (int i = n - 1; i >= 0; i--)
+            out.writeBytes(entries.get(i).getKey().bytes);
+        return out.toByteArray();
+    }
+
+    private record ByteSeq(byte[] bytes) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteSeq other && Arrays.equals(bytes, other.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+
+    /**
+     * 判断数据是否为压缩格式
+     *
+     * @param data 数据
+     * @return 是否为压缩格式
+     */
+    public static boolean isEncoded(@Nullable byte[] data) {
+        return data != null && data.length >= HEADER_SIZE
+                && data[0] == MAGIC_0 && data[1] == MAGIC_1 && data[2] == MAGIC_2;
+    }
+
+    /**
+     * 压缩数据
+     *
+     * @param data 原始数据
+     * @return 压缩后的数据；不值得压缩时返回 `data` 本身。以压缩格式标记开头的数据总是返回压缩格式
+     */
+    @Nullable
+    public byte[] encode(@Nullable byte[] data) {
+        if (data == null)
+            return null;
+
+        // raw data looking like the encoded format must be wrapped, or decode() would misread it
+        boolean mustWrap = isEncoded(data);
+        if (!mustWrap && data.length < minSize)
+            return data;
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        deflater.setInput(data);
+        deflater.finish();
+
+        // not worth it if not smaller
+        byte[] out = new byte[mustWrap ? HEADER_SIZE + data.length + (data.length >>> 3) + 64 : data.length];
+        int n = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (n == out.length) {
+                if (!mustWrap)
+                    return data;
+                out = Arrays.copyOf(out, out.length * 2);
+            }
+            n += deflater.deflate(out, n, out.length - n);
+        }
+
+        out[0] = MAGIC_0;
+        out[1] = MAGIC_1;
+        out[2] = MAGIC_2;
+        out[3] = (byte) version;
+        out[4] = (byte) (data.length >>> 24);
+        out[5] = (byte) (data.length >>> 16);
+        out[6] = (byte) (data.length >>> 8);
+        out[7] = (byte) data.length;
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * 取原始数据的长度
+     *
+     * @param data 数据，可以是压缩格式或未压缩的数据
+     * @return 原始数据的长度
+     */
+    public static int originalSize(@NonNull byte[] data) {
+        if (!isEncoded(data))
+            return data.length;
+
+        return ((data[4] & 0xFF) << 24) | ((data[5] & 0xFF) << 16) | ((data[6] & 0xFF) << 8) | (data[7] & 0xFF);
+    }
+
+    /**
+     * 解压数据
+     *
+     * @param data 数据，可以是压缩格式或未压缩的数据
+     * @return 原始数据。压缩版本未知、原始长度不合理或数据损坏时返回 `data` 本身
+     */
+    @Nullable
+    public byte[] decode(@Nullable byte[] data) {
+        if (!isEncoded(data))
+            return data;
+
+        int v = data[3] & 0xFF;
+        byte[] dict;
+        if (v == version)
+            dict = dictionary;
+        else if (v == BUILTIN_VERSION)
+            dict = BUILTIN_DICTIONARY;
+        else {
+            LOGGER.warn("Unknown comm log payload codec version: {}, payload returned as is.", v);
+            return data;
+        }
+
+        int size = originalSize(data);
+        if (size < 0 || (long) size > (long) (data.length - HEADER_SIZE) * MAX_RATIO) {
+            LOGGER.warn("Invalid comm log payload original size: {}, payload returned as is.", size);
+            return data;
+        }
+
+        byte[] out = new byte[size];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        try {
+            inflater.setDictionary(dict);
+            inflater.setInput(data, HEADER_SIZE, data.length - HEADER_SIZE);
+            int n = 0;
+            while (n < out.length) {
+                int r = inflater.inflate(out, n, out.length - n);
+                if (r == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += r;
+            }
+
+            if (n != out.length) {
+                LOGGER.warn("Corrupted comm log payload, {} of {} bytes decoded, payload returned as is.", n, out.length);
+                return data;
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            LOGGER.warn("Corrupted comm log payload, payload returned as is.", e);
+            return data;
+        }
+
+        return out;
+    }
+
+    /**
+     * 计算原始数据长度的 SQL 表达式，兼容压缩格式与未压缩的数据
+     *
+     * @param column bytea 列名
+     * @return SQL 表达式
+     */
+    public static String originalSizeSql(@NonNull String column) {
+        return "CASE WHEN length(" + column + ") >= " + HEADER_SIZE +
+                " AND substring(" + column + " FROM 1 FOR 3) = decode('1f4743', 'hex')" +
+                " THEN (get_byte(" + column + ", 4) << 24) | (get_byte(" + column + ", 5) << 16)" +
+                " | (get_byte(" + column + ", 6) << 8) | get_byte(" + column + ", 7)" +
+                " ELSE length(" + column + ") END";
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import com.lucendar.strm.common.types.CommLog;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.List;
+
+/**
+ * 异步通讯日志保存器。
+ * <p>
+ * `save()` 将通讯日志放入队列后立即返回，不阻塞网关的网络线程。日志按 simNo 分派到各写入线程，
+ * 按批大小或时间间隔经 `CommLogDao.saveCommLogs()`（COPY）写入数据库。
+ * <p>
+ * 通讯日志允许丢失，`DEFAULT_CONFIG` 在队列满时丢弃最旧的日志，写入失败的批次只记录日志和指标，不重试。
+ */
+public class CommLogSaver extends AsyncBatchWriter<CommLog> {
+
+    public static final BatchWriterConfig DEFAULT_CONFIG =
+            BatchWriterConfig.DEFAULT.withOverflowPolicy(BatchWriterOverflowPolicy.DROP_OLDEST);
+
+    private final CommLogDao commLogDao;
+    private final CommLogSaverMetrics metrics;
+
+    /**
+     * @param commLogDao 通讯日志 DAO
+     * @param config     写入器配置
+     * @param metrics    指标，为 null 时不记录指标
+     */
+    public CommLogSaver(@NonNull CommLogDao commLogDao,
+                        @NonNull BatchWriterConfig config,
+                        @Nullable CommLogSaverMetrics metrics) {
+        super("comm-log-saver", config);
+        this.commLogDao = commLogDao;
+        this.metrics = metrics;
+    }
+
+    public CommLogSaver(@NonNull CommLogDao commLogDao) {
+        this(commLogDao, DEFAULT_CONFIG, null);
+    }
+
+    /**
+     * 异步保存通讯日志
+     *
+     * @param commLog 通讯日志
+     * @return 是否已接受
+     */
+    public boolean save(@NonNull CommLog commLog) {
+        return submit(commLog);
+    }
+
+    @Override
+    protected int shardOf(CommLog commLog) {
+        String simNo = commLog.getSimNo();
+        return simNo != null ? simNo.hashCode() : 0;
+    }
+
+    @Override
+    protected void onDropped(CommLog commLog) {
+        if (metrics != null)
+            metrics.droppedCommLogCounter().inc();
+    }
+
+    @Override
+    protected void flush(int shard, @NonNull List<CommLog> batch) {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            commLogDao.saveCommLogs(batch);
+            success = true;
+        } finally {
+            if (metrics != null) {
+                metrics.histogram().observe((System.nanoTime() - start) / 1e9);
+                if (success)
+                    metrics.savedCommLogCounter().inc(batch.size());
+                else
+                    metrics.failedCommLogCounter().inc(batch.size());
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db
+
+import io.prometheus.metrics.core.metrics.{Counter, Histogram}
+
+/**
+ * `CommLogSaver` 的指标
+ *
+ * @param histogram             每批写入耗时，单位：秒
+ * @param savedCommLogCounter   成功写入的通讯日志数
+ * @param failedCommLogCounter  写入失败的通讯日志数
+ * @param droppedCommLogCounter 因队列已满而丢弃的通讯日志数
+ */
+case class CommLogSaverMetrics(
+                                histogram            : Histogram,
+                                savedCommLogCounter  : Counter,
+                                failedCommLogCounter : Counter,
+                                droppedCommLogCounter: Counter
+                              )
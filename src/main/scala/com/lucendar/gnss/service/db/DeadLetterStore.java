@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 死信存储，保存因数据本身的错误而无法写入数据库的记录，由 `BatchBisector` 使用。
+ *
+ * @param <T> 记录的类型
+ */
+public interface DeadLetterStore<T> {
+
+    /**
+     * 保存无法写入的记录。本方法可能被多个线程并发调用。
+     *
+     * @param row      记录
+     * @param sqlState 数据库返回的 SQLState，可能为 null
+     * @param error    写入时的异常
+     */
+    void put(@NonNull T row, @Nullable String sqlState, @NonNull Throwable error);
+
+    /**
+     * 创建只记录日志的死信存储
+     *
+     * @param name 名称，日志名为 `gnss.deadLetter.<name>`
+     * @param <T>  记录的类型
+     * @return 死信存储
+     */
+    static <T> DeadLetterStore<T> logging(@NonNull String name) {
+        final Logger logger = LoggerFactory.getLogger("gnss.deadLetter." + name);
+        return (row, sqlState, error) ->
+                logger.error("Dead letter, sqlState: {}, error: {}, row: {}", sqlState, error.getMessage(), row);
+    }
+}
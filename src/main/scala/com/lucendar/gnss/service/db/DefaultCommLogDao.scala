@@ -4,18 +4,55 @@
  */
 package com.lucendar.gnss.service.db
 
-import com.lucendar.common.db.jdbc.{DbHelper, ResultSetAccessor, ResultSetMapper, StatementBinder}
+import com.lucendar.common.db.jdbc.{ResultSetAccessor, ResultSetMapper, StatementBinder}
 import com.lucendar.common.db.types.SqlDialect
-import com.lucendar.gnss.service.db.DefaultCommLogDao.{DATA_SZ_MAPPER, MAPPER}
+import com.lucendar.common.utils.DateTimeUtils
+import com.lucendar.gnss.service.db.DefaultCommLogDao._
 import com.lucendar.strm.common.types.CommLog
-import org.checkerframework.checker.nullness.qual.NonNull
+import de.bytefish.pgbulkinsert.util.PostgreSqlUtils
+import org.checkerframework.checker.nullness.qual.{NonNull, Nullable}
 
+import java.sql.Types
+import java.time.temporal.ChronoUnit
+import java.time.{Instant, OffsetDateTime}
 import java.util
 import javax.sql.DataSource
+import scala.util.Using
 
-class DefaultCommLogDao(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect)
+/**
+ * 终端通讯日志 DAO
+ *
+ * @param payloadCodec 报文压缩编解码器。不为 null 时，保存前压缩报文；查询时总是透明地解压已压缩的报文
+ * @param recentCache  最近通讯日志缓存。不为 null 时，`saveCommLogs()` 保存的日志同时加入缓存，
+ *                     `qryRecentCommLogs()` 在缓存能覆盖开始时间时从缓存返回结果（日志 `id` 为 null）。
+ *                     `qryGatewayCommLog()` 总是查询数据库
+ */
+class DefaultCommLogDao(@NonNull ds: DataSource,
+                        @NonNull sqlDialect: SqlDialect,
+                        @Nullable payloadCodec: CommLogPayloadCodec,
+                        @Nullable recentCache: RecentCommLogCache)
   extends AbstractJdbcDao(ds, sqlDialect) with CommLogDao {
 
+  def this(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @Nullable payloadCodec: CommLogPayloadCodec) =
+    this(ds, sqlDialect, payloadCodec, null)
+
+  def this(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect) =
+    this(ds, sqlDialect, null, null)
+
+  private val decoder = if (payloadCodec != null) payloadCodec else CommLogPayloadCodec.DEFAULT
+
+  private val mapper: ResultSetMapper[CommLog] = (acc: ResultSetAccessor) => {
+    val r = new CommLog
+    r.setId(acc.str())
+    r.setTs(acc.epochMillisLong())
+    r.setAppId(acc.str())
+    r.setSimNo(acc.str())
+    r.setEvtTyp(acc.str())
+    r.setDesc(acc.str())
+    r.setBinaryData(decoder.decode(acc.byteArray()))
+    r
+  }
+
   override def qryGatewayCommLog(
                                   startTs: Long,
                                   appId  : String,
@@ -24,79 +61,176 @@ class DefaultCommLogDao(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect
                                   limit  : Int,
                                   offset : Int
                                 ): util.List[CommLog] = {
-
-
     val (sql, mapper) =
-      if (retData)
-        (
-          """
-       SELECT f_id, f_ts, f_app_id, f_sim_no, f_evt_typ, f_desc, f_data
-       FROM t_comm_log
-       WHERE f_ts >= ? AND f_app_id = ? AND f_sim_no = ?
-       LIMIT %d OFFSET %d
-       """.formatted(limit, offset),
-          MAPPER
-        )
-      else (
-        """
-       SELECT f_id, f_ts, f_app_id, f_sim_no, f_evt_typ, f_desc, length(f_data) AS f_data_sz
-       FROM t_comm_log
-       WHERE f_ts >= ? AND f_app_id = ? AND f_sim_no = ?
-       LIMIT %d OFFSET %d
-       """.formatted(limit, offset),
-        DATA_SZ_MAPPER
-      )
-
+      if (retData) (QRY_SQL, mapper)
+      else (QRY_DATA_SZ_SQL, DATA_SZ_MAPPER)
 
     qryList(
       sql, (setter: StatementBinder) => {
         setter.setBeijingConvOdt(startTs)
         setter.setString(appIdDef(appId))
         setter.setString(simNo)
+        setter.setInt(limit)
+        setter.setInt(offset)
       }, mapper
     )
   }
 
+  override def qryRecentCommLogs(
+                                  startTs: Long,
+                                  appId  : String,
+                                  simNo  : String,
+                                  retData: Boolean,
+                                  limit  : Int,
+                                  offset : Int
+                                ): util.List[CommLog] = {
+    if (recentCache != null) {
+      val r = recentCache.get(startTs, appIdDef(appId), simNo, retData, limit, offset)
+      if (r != null)
+        return r
+    }
+
+    qryGatewayCommLog(startTs, appId, simNo, retData, limit, offset)
+  }
+
+  override def qryGatewayCommLogPage(
+                                      startTs  : Long,
+                                      appId    : String,
+                                      simNo    : String,
+                                      retData  : Boolean,
+                                      limit    : Int,
+                                      pageToken: String
+                                    ): CommLogPage = {
+    require(limit > 0, "limit")
 
-  override def saveCommLogs(commLogs: util.List[CommLog]): Unit = {
+    val pos = if (pageToken != null) CommLogPage.Position.decode(pageToken) else null
     val sql =
-      """
-       INSERT INTO t_comm_log (f_ts, f_app_id, f_sim_no, f_evt_typ, f_desc, f_data)
-       VALUES (?, ?, ?, ?, ?, ?)
-       """
+      if (pos == null) {
+        if (retData) FIRST_PAGE_SQL else FIRST_PAGE_DATA_SZ_SQL
+      } else {
+        if (retData) NEXT_PAGE_SQL else NEXT_PAGE_DATA_SZ_SQL
+      }
 
-    dbAction(
-      conn => {
-        DbHelper.batchUpdate(
-          sql,
-          commLogs,
-          (commLog: CommLog, binder: StatementBinder) => {
-            binder.setBeijingConvOdt(commLog.getTs)
-            binder.setString(commLog.getAppId)
-            binder.setString(commLog.getSimNo)
-            binder.setString(commLog.getEvtTyp)
-            binder.setString(commLog.getDesc)
-            binder.setBytes(commLog.getBinaryData)
+    dbAction(conn => {
+      Using.resource(conn.prepareStatement(sql)) { ps =>
+        ps.setString(1, appIdDef(appId))
+        ps.setString(2, simNo)
+        ps.setObject(3, odt(startTs * 1000))
+        var idx = 4
+        if (pos != null) {
+          val lastTs = odt(pos.tsMicros)
+          ps.setObject(4, lastTs)
+          ps.setObject(5, lastTs)
+          // untyped, so it compares as whatever type f_id is
+          ps.setObject(6, pos.id, Types.OTHER)
+          idx = 7
+        }
+        // one more row tells whether there is a next page
+        ps.setInt(idx, limit + 1)
+
+        Using.resource(ps.executeQuery()) { rs =>
+          val items = new util.ArrayList[CommLog]()
+          var lastTs: OffsetDateTime = null
+          var more = false
+          while (!more && rs.next()) {
+            if (items.size() == limit)
+              more = true
+            else {
+              val ts = rs.getObject(2, classOf[OffsetDateTime])
+              val r = new CommLog
+              r.setId(rs.getString(1))
+              r.setTs(ts.toInstant.toEpochMilli)
+              r.setAppId(rs.getString(3))
+              r.setSimNo(rs.getString(4))
+              r.setEvtTyp(rs.getString(5))
+              r.setDesc(rs.getString(6))
+              if (retData) r.setBinaryData(decoder.decode(rs.getBytes(7)))
+              else r.setDataSz(rs.getInt(7))
+              items.add(r)
+              lastTs = ts
+            }
           }
-        )(conn)
+
+          val nextPageToken =
+            if (more) new CommLogPage.Position(epochMicros(lastTs), items.get(limit - 1).getId).encode()
+            else null
+          new CommLogPage(items, nextPageToken)
+        }
       }
-    )
+    })
+  }
+
+  /**
+   * 以 binary COPY 保存通讯日志，使用独立的连接，不参与外部事务。
+   */
+  override def saveCommLogs(commLogs: util.List[CommLog]): Unit = {
+    if (commLogs.isEmpty) return
+
+    Using.resource(ds.getConnection) { conn =>
+      val pg = PostgreSqlUtils.getPGConnection(conn)
+      Using.resource(new PgBinaryCopyWriter(pg, COMM_LOG_TABLE)) { writer =>
+        commLogs.forEach(commLog => {
+          writer.startRow()
+          writer.tsz(commLog.getTs)
+          writer.text(commLog.getAppId)
+          writer.text(commLog.getSimNo)
+          writer.text(commLog.getEvtTyp)
+          writer.text(commLog.getDesc)
+          writer.bytea(
+            if (payloadCodec != null) payloadCodec.encode(commLog.getBinaryData)
+            else commLog.getBinaryData
+          )
+        })
+      }
+    }
+
+    if (recentCache != null)
+      commLogs.forEach(commLog => recentCache.add(appIdDef(commLog.getAppId), commLog))
   }
 }
 
 object DefaultCommLogDao {
 
-  private val MAPPER: ResultSetMapper[CommLog] = (acc: ResultSetAccessor) => {
-    val r = new CommLog
-    r.setId(acc.str())
-    r.setTs(acc.epochMillisLong())
-    r.setAppId(acc.str())
-    r.setSimNo(acc.str())
-    r.setEvtTyp(acc.str())
-    r.setDesc(acc.str())
-    r.setBinaryData(acc.byteArray())
-    r
-  }
+  private final val COMM_LOG_TABLE =
+    new PgBinaryCopyWriter.Table("t_comm_log", "f_ts", "f_app_id", "f_sim_no", "f_evt_typ", "f_desc", "f_data")
+
+  private final val COLUMNS = "f_id, f_ts, f_app_id, f_sim_no, f_evt_typ, f_desc, f_data"
+  // reports the original size of compressed payloads
+  private final val DATA_SZ_COLUMNS =
+    s"f_id, f_ts, f_app_id, f_sim_no, f_evt_typ, f_desc, ${CommLogPayloadCodec.originalSizeSql("f_data")} AS f_data_sz"
+
+  private def qrySql(columns: String): String =
+    s"""
+       SELECT $columns
+       FROM t_comm_log
+       WHERE f_ts >= ? AND f_app_id = ? AND f_sim_no = ?
+       ORDER BY f_ts, f_id
+       LIMIT ? OFFSET ?
+       """
+
+  private final val QRY_SQL = qrySql(COLUMNS)
+  private final val QRY_DATA_SZ_SQL = qrySql(DATA_SZ_COLUMNS)
+
+  // Constant texts, so they are prepared once and walk an index on (f_app_id, f_sim_no, f_ts) from the last position.
+  private def pageSql(columns: String, next: Boolean): String =
+    s"""
+       SELECT $columns
+       FROM t_comm_log
+       WHERE f_app_id = ? AND f_sim_no = ? AND f_ts >= ?${if (next) " AND f_ts >= ? AND (f_ts, f_id) > (?, ?)" else ""}
+       ORDER BY f_ts, f_id
+       LIMIT ?
+       """
+
+  private final val FIRST_PAGE_SQL = pageSql(COLUMNS, next = false)
+  private final val FIRST_PAGE_DATA_SZ_SQL = pageSql(DATA_SZ_COLUMNS, next = false)
+  private final val NEXT_PAGE_SQL = pageSql(COLUMNS, next = true)
+  private final val NEXT_PAGE_DATA_SZ_SQL = pageSql(DATA_SZ_COLUMNS, next = true)
+
+  private def odt(epochMicros: Long): OffsetDateTime =
+    OffsetDateTime.ofInstant(Instant.EPOCH.plus(epochMicros, ChronoUnit.MICROS), DateTimeUtils.ZONE_OFFSET_BEIJING)
+
+  private def epochMicros(ts: OffsetDateTime): Long =
+    ChronoUnit.MICROS.between(Instant.EPOCH, ts.toInstant)
 
   private val DATA_SZ_MAPPER: ResultSetMapper[CommLog] = (acc: ResultSetAccessor) => {
     val r = new CommLog
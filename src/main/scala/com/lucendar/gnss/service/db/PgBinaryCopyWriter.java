@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+
+package com.lucendar.gnss.service.db;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.sql.SQLException;
+
+/**
+ * PostgreSQL 二进制 COPY 写入器。
+ * <p>
+ * 与 `SimpleRowWriter` 不同，本类直接将基本类型值编码到可复用的缓冲区中，写入每行、每列都不产生对象：
+ * 不装箱，不创建每行的 lambda，时间戳由毫秒数直接换算为 PostgreSQL 的微秒数。
+ * <p>
+ * 用法：
+ * <pre>
+ * try (var writer = new PgBinaryCopyWriter(pg, TABLE)) {
+ *     for (...) {
+ *         writer.startRow();
+ *         writer.text(...);
+ *         writer.int4(...);
+ *     }
+ * }
+ * </pre>
+ * 每行写入的列数必须与 `Table` 的列数相同。关闭时若最后一行不完整，则取消本次 COPY。
+ * <p>
+ * 缓冲区在构造时从当前线程借用，关闭时归还；同一线程同时打开的多个写入器各自使用独立的缓冲区。
+ * 因大值扩大的缓冲区不归还，以免线程长期持有大块内存。
+ */
+public class PgBinaryCopyWriter implements AutoCloseable {
+
+    /**
+     * COPY 的目标表
+     */
+    public static class Table {
+        private final String name;
+        private final String[] columns;
+        private final String copySql;
+
+        public Table(@NonNull String name, @NonNull String... columns) {
+            this.name = name;
+            this.columns = columns;
+            this.copySql = "COPY " + name + "(" + String.join(",", columns) + ") FROM STDIN BINARY";
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String[] getColumns() {
+            return columns;
+        }
+
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        public String getCopySql() {
+            return copySql;
+        }
+    }
+
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0};
+
+    /**
+     * 1970-01-01 到 2000-01-01 (PostgreSQL 时间戳的纪元) 的毫秒数
+     */
+    private static final long PG_EPOCH_MILLIS = 946_684_800_000L;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    // an idle buffer of DEFAULT_BUFFER_SIZE per thread, taken by the open writer
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private static byte[] borrowBuffer() {
+        byte[] b = BUFFERS.get();
+        if (b == null)
+            return new byte[DEFAULT_BUFFER_SIZE];
+
+        BUFFERS.remove();
+        return b;
+    }
+
+    private static void returnBuffer(byte[] b) {
+        if (b.length == DEFAULT_BUFFER_SIZE)
+            BUFFERS.set(b);
+    }
+
+    private final Table table;
+    private final CopyIn copyIn;
+    private byte[] buf;
+    private int pos;
+    private int columnIndex;
+    private boolean rowStarted;
+
+    public PgBinaryCopyWriter(@NonNull PGConnection pg, @NonNull Table table) throws SQLException {
+        this.table = table;
+        this.copyIn = pg.getCopyAPI().copyIn(table.getCopySql());
+        this.buf = borrowBuffer();
+
+        ensure(SIGNATURE.length + 8);
+        System.arraycopy(SIGNATURE, 0, buf, 0, SIGNATURE.length);
+        pos = SIGNATURE.length;
+        putInt(0); // flags
+        putInt(0); // header extension length
+    }
+
+    public Table getTable() {
+        return table;
+    }
+
+    private void flushBuffer() throws SQLException {
+        if (pos > 0) {
+            copyIn.writeToCopy(buf, 0, pos);
+            pos = 0;
+        }
+    }
+
+    private void ensure(int n) {
+        if (buf.length - pos >= n)
+            return;
+
+        try {
+            flushBuffer();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (buf.length < n)
+            buf = new byte[Math.max(n, buf.length * 2)];
+    }
+
+    private void putShort(int v) {
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void putInt(int v) {
+        buf[pos++] = (byte) (v >>> 24);
+        buf[pos++] = (byte) (v >>> 16);
+        buf[pos++] = (byte) (v >>> 8);
+        buf[pos++] = (byte) v;
+    }
+
+    private void putLong(long v) {
+        putInt((int) (v >>> 32));
+        putInt((int) v);
+    }
+
+    private void nextColumn() {
+        if (columnIndex >= table.getColumnCount())
+            throw new IllegalStateException("Too many values for table " + table.getName() + ".");
+        columnIndex++;
+    }
+
+    /**
+     * 开始新的一行
+     */
+    public void startRow() {
+        if (rowStarted && columnIndex != table.getColumnCount())
+            throw new IllegalStateException("Expect " + table.getColumnCount() + " values for table " +
+                    table.getName() + ", but " + columnIndex + " written.");
+
+        ensure(2);
+        putShort(table.getColumnCount());
+        columnIndex = 0;
+        rowStarted = true;
+    }
+
+    public void nul() {
+        nextColumn();
+        ensure(4);
+        putInt(-1);
+    }
+
+    public void bool(boolean value) {
+        nextColumn();
+        ensure(5);
+        putInt(1);
+        buf[pos++] = (byte) (value ? 1 : 0);
+    }
+
+    public void bool(@Nullable Boolean value) {
+        if (value != null)
+            bool(value.booleanValue());
+        else
+            nul();
+    }
+
+    /**
+     * 写入 smallint 列
+     *
+     * @param value 值
+     * @throws IllegalArgumentException 值超出 smallint 的范围。其 cause 为 SQLState 为 22003（numeric_value_out_of_range）的
+     *                                  `SQLException`，`BatchBisector` 据此隔离该行
+     */
+    public void int2(int value) {
+        if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+            String msg = "Value " + value + " out of range for smallint column " + (columnIndex + 1) + " of table " +
+                    table.getName() + ".";
+            throw new IllegalArgumentException(msg, new SQLException(msg, "22003"));
+        }
+
+        nextColumn();
+        ensure(6);
+        putInt(2);
+        putShort(value);
+    }
+
+    public void int2(@Nullable Integer value) {
+        if (value != null)
+            int2(value.intValue());
+        else
+            nul();
+    }
+
+    public void int4(int value) {
+        nextColumn();
+        ensure(8);
+        putInt(4);
+        putInt(value);
+    }
+
+    public void int4(@Nullable Integer value) {
+        if (value != null)
+            int4(value.intValue());
+        else
+            nul();
+    }
+
+    public void int8(long value) {
+        nextColumn();
+        ensure(12);
+        putInt(8);
+        putLong(value);
+    }
+
+    public void int8(@Nullable Long value) {
+        if (value != null)
+            int8(value.longValue());
+        else
+            nul();
+    }
+
+    public void float4(float value) {
+        nextColumn();
+        ensure(8);
+        putInt(4);
+        putInt(Float.floatToRawIntBits(value));
+    }
+
+    public void float4(@Nullable Float value) {
+        if (value != null)
+            float4(value.floatValue());
+        else
+            nul();
+    }
+
+    public void float8(double value) {
+        nextColumn();
+        ensure(12);
+        putInt(8);
+        putLong(Double.doubleToRawLongBits(value));
+    }
+
+    public void float8(@Nullable Double value) {
+        if (value != null)
+            float8(value.doubleValue());
+        else
+            nul();
+    }
+
+    /**
+     * 写入 `timestamptz` 值
+     *
+     * @param epochMillis 自 1970-01-01T00:00:00Z 起的毫秒数
+     */
+    public void tsz(long epochMillis) {
+        int8((epochMillis - PG_EPOCH_MILLIS) * 1000L);
+    }
+
+    public void tsz(@Nullable Long epochMillis) {
+        if (epochMillis != null)
+            tsz(epochMillis.longValue());
+        else
+            nul();
+    }
+
+    /**
+     * 写入 `text` 值，直接按 UTF-8 编码到缓冲区
+     *
+     * @param value 字符串
+     */
+    public void text(@Nullable String value) {
+        if (value == null) {
+            nul();
+            return;
+        }
+
+        nextColumn();
+        final int len = value.length();
+        ensure(4 + len * 3);
+
+        final int lenPos = pos;
+        pos += 4;
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        int n = pos - lenPos - 4;
+        buf[lenPos] = (byte) (n >>> 24);
+        buf[lenPos + 1] = (byte) (n >>> 16);
+        buf[lenPos + 2] = (byte) (n >>> 8);
+        buf[lenPos + 3] = (byte) n;
+    }
+
+    /**
+     * 写入 `bytea` 值。较大的值不经缓冲区，直接发送。
+     *
+     * @param value 字节数组
+     */
+    public void bytea(@Nullable byte[] value) {
+        if (value == null) {
+            nul();
+            return;
+        }
+
+        nextColumn();
+        final int len = value.length;
+        if (len <= buf.length / 2) {
+            ensure(4 + len);
+            putInt(len);
+            System.arraycopy(value, 0, buf, pos, len);
+            pos += len;
+            return;
+        }
+
+        ensure(4);
+        putInt(len);
+        try {
+            flushBuffer();
+            copyIn.writeToCopy(value, 0, len);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * 结束 COPY 并归还缓冲区。若最后一行不完整，则取消本次 COPY 并抛出异常。
+     */
+    @Override
+    public void close() throws SQLException {
+        if (buf == null)
+            return;
+
+        try {
+            if (rowStarted && columnIndex != table.getColumnCount()) {
+                copyIn.cancelCopy();
+                throw new IllegalStateException("Incomplete row for table " + table.getName() + ", COPY cancelled.");
+            }
+
+            try {
+                ensure(2);
+                putShort(-1);
+                flushBuffer();
+                copyIn.endCopy();
+            } catch (Throwable t) {
+                if (copyIn.isActive())
+                    copyIn.cancelCopy();
+                throw t;
+            }
+        } finally {
+            returnBuffer(buf);
+            buf = null;
+        }
+    }
+}
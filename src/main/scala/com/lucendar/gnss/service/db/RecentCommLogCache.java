@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.lucendar.strm.common.types.CommLog;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 终端最近通讯日志的内存缓存。
+ * <p>
+ * 每个终端（appId, simNo）一个定长环形缓冲区，保存最近的 `capacity` 条通讯日志。所有缓冲区共享内存预算，
+ * 超出预算时淘汰最近最少使用的终端，空闲超过 `idleTimeout` 的终端也被淘汰。
+ * <p>
+ * 每个缓冲区记录其覆盖起点：定位时间不早于该时间的日志都在缓冲区中。缓冲区创建后，起点为第一条日志的时间之后；
+ * 旧日志被覆盖后，起点推进到被覆盖日志的时间之后。查询的开始时间不早于覆盖起点时，`get()` 从内存返回结果。
+ * <p>
+ * 本缓存只包含经本节点保存的日志：同一终端的日志若由多个节点保存，不应启用本缓存。日志以 COPY 保存，
+ * 数据库生成的 `id` 不可得，因此从缓存返回的日志 `id` 为 null，
+ * `DefaultCommLogDao` 只在 `qryRecentCommLogs()` 中使用本缓存。
+ * <p>
+ * 本类是线程安全的。
+ */
+public class RecentCommLogCache {
+
+    // object headers, references and fields of a CommLog, roughly
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private record Key(String appId, String simNo) {
+    }
+
+    private static final class Ring {
+        final CommLog[] entries;
+        int head;
+        int size;
+        long bytes;
+        long coveredSince;
+
+        Ring(int capacity, long coveredSince) {
+            this.entries = new CommLog[capacity];
+            this.coveredSince = coveredSince;
+        }
+    }
+
+    private final int capacity;
+    private final Cache<Key, Ring> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param capacity          每个终端缓存的最大日志条数
+     * @param memoryBudgetBytes 全部终端缓存的估计内存上限，单位：字节
+     * @param idleTimeout       终端无读写超过该时长后被淘汰
+     */
+    public RecentCommLogCache(int capacity, long memoryBudgetBytes, @NonNull Duration idleTimeout) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity");
+        if (memoryBudgetBytes <= 0)
+            throw new IllegalArgumentException("memoryBudgetBytes");
+
+        this.capacity = capacity;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(memoryBudgetBytes)
+                .weigher((Key k, Ring r) -> (int) Math.min(Integer.MAX_VALUE, r.bytes))
+                .expireAfterAccess(idleTimeout)
+                .build();
+    }
+
+    private static long sizeOf(CommLog log) {
+        long n = ENTRY_OVERHEAD;
+        byte[] data = log.getBinaryData();
+        if (data != null)
+            n += data.length;
+        if (log.getDesc() != null)
+            n += 2L * log.getDesc().length();
+        if (log.getEvtTyp() != null)
+            n += 2L * log.getEvtTyp().length();
+        return n;
+    }
+
+    private static CommLog copyOf(CommLog log, boolean retData) {
+        var r = new CommLog();
+        r.setTs(log.getTs());
+        r.setAppId(log.getAppId());
+        r.setSimNo(log.getSimNo());
+        r.setEvtTyp(log.getEvtTyp());
+        r.setDesc(log.getDesc());
+        byte[] data = log.getBinaryData();
+        if (retData)
+            r.setBinaryData(data);
+        else
+            r.setDataSz(data != null ? data.length : 0);
+        return r;
+    }
+
+    /**
+     * 添加已保存的通讯日志
+     *
+     * @param appId   应用 ID
+     * @param commLog 通讯日志，调用者不应再修改
+     */
+    public void add(@NonNull String appId, @NonNull CommLog commLog) {
+        String simNo = commLog.getSimNo();
+        Long ts = commLog.getTs();
+        if (simNo == null || ts == null)
+            return;
+
+        final long tsMillis = ts;
+        // compute() lets Caffeine re-weigh the ring after every change
+        cache.asMap().compute(new Key(appId, simNo), (k, ring) -> {
+            if (ring == null)
+                ring = new Ring(capacity, tsMillis + 1);
+
+            synchronized (ring) {
+                int tail = (ring.head + ring.size) % capacity;
+                if (ring.size == capacity) {
+                    CommLog evicted = ring.entries[ring.head];
+                    ring.bytes -= sizeOf(evicted);
+                    ring.coveredSince = Math.max(ring.coveredSince, evicted.getTs() + 1);
+                    ring.head = (ring.head + 1) % capacity;
+                } else
+                    ring.size++;
+
+                ring.entries[tail] = commLog;
+                ring.bytes += sizeOf(commLog);
+            }
+
+            return ring;
+        });
+    }
+
+    /**
+     * 从缓存查询终端通讯日志，结果按时间升序排列
+     *
+     * @param startTs 开始时间
+     * @param appId   应用 ID
+     * @param simNo   终端识别号
+     * @param retData 是否返回 `data` 属性。为 false 时，不返回 `data` 而返回 `dataSz`
+     * @param limit   返回的最大记录数
+     * @param offset  返回结果的偏移量
+     * @return 查询结果；缓存不能覆盖 `startTs` 时返回 null，调用者应查询数据库
+     */
+    @Nullable
+    public List<CommLog> get(long startTs, @NonNull String appId, @NonNull String simNo,
+                             boolean retData, int limit, int offset) {
+        Ring ring = cache.getIfPresent(new Key(appId, simNo));
+        if (ring == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        var matched = new ArrayList<CommLog>();
+        synchronized (ring) {
+            if (startTs < ring.coveredSince) {
+                missCount.incrementAndGet();
+                return null;
+            }
+
+            for (int i = 0; i < ring.size; i++) {
+                CommLog log = ring.entries[(ring.head + i) % capacity];
+                if (log.getTs() >= startTs)
+                    matched.add(log);
+            }
+        }
+
+        hitCount.incrementAndGet();
+
+        // logs may arrive slightly out of order
+        matched.sort(Comparator.comparingLong(CommLog::getTs));
+
+        int from = Math.min(offset, matched.size());
+        int to = (int) Math.min((long) from + limit, matched.size());
+        var r = new ArrayList<CommLog>(to - from);
+        for (int i = from; i < to; i++)
+            r.add(copyOf(matched.get(i), retData));
+        return r;
+    }
+
+    /**
+     * 移除终端的缓存
+     *
+     * @param appId 应用 ID
+     * @param simNo 终端识别号
+     */
+    public void invalidate(@NonNull String appId, @NonNull String simNo) {
+        cache.invalidate(new Key(appId, simNo));
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return 缓存的终端数（估计值）
+     */
+    public long getTerminalCount() {
+        return cache.estimatedSize();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -11,6 +11,12 @@ import de.bytefish.pgbulkinsert.row.SimpleRow;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 
+/**
+ * `SimpleRow` 的顺序列写入器。
+ *
+ * @deprecated 本库已改用 `PgBinaryCopyWriter` 写入 COPY 数据，写入时不装箱、不产生每行的对象。本类将在以后的版本中移除。
+ */
+@Deprecated
 public class RowAccessor {
     private final SimpleRow row;
     private int index;
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.lucendar.gnss.sdk.alm.Alm;
+import com.lucendar.gnss.sdk.alm.CloseAlmReq;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 进程内的活动报警（`f_actv` 为 true）索引。
+ * <p>
+ * 以 (simNo, typ, subTyp) 和报警 ID 索引未关闭的报警，查询为 O(1) 且不访问数据库，报警引擎可据此判断报警是否已开启，
+ * 并取得关闭报警所需的 ID 和开始时间。
+ * <p>
+ * 通过 `AlmDao_Pg.addAlmListener()` 注册后，与 `createAlm()`/`bulkSaveAlms()`/`closeAlm()`/`closeAlms()` 同步更新；
+ * 通过 `AlmSaver.setActiveAlmRegistry()` 设置后，报警在分配 ID 时即登记，写入失败时移除。
+ * 启动时调用 `warmUp()` 从 `t_alm` 加载。同一键的新报警替换旧报警。
+ * <p>
+ * 最近关闭的报警 ID（最多 {@value #RECENTLY_CLOSED_CAPACITY} 个）被记住，`put()` 忽略这些报警，
+ * 以免 `warmUp()` 加载的查询结果或迟到的保存通知将已关闭的报警重新登记为活动报警。
+ * <p>
+ * 索引中的 `Alm` 对象由所有调用者共享，调用者不应修改。
+ */
+public class ActiveAlmRegistry implements AlmListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.activeAlmRegistry");
+
+    private record Key(String simNo, String typ, String subTyp) {
+    }
+
+    private final ConcurrentHashMap<Key, Alm> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Alm> byId = new ConcurrentHashMap<>();
+
+    /**
+     * 记住的最近关闭的报警 ID 数
+     */
+    public static final int RECENTLY_CLOSED_CAPACITY = 10_000;
+
+    // guarded by this
+    private final LinkedHashMap<String, Boolean> recentlyClosed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > RECENTLY_CLOSED_CAPACITY;
+        }
+    };
+
+    private static Key keyOf(Alm alm) {
+        return new Key(alm.getSimNo(), alm.getTyp(), alm.getSubTyp());
+    }
+
+    /**
+     * 取活动报警
+     *
+     * @param simNo  终端识别号
+     * @param typ    报警类型
+     * @param subTyp 报警子类型，可为 null
+     * @return 活动报警，不存在时返回 null
+     */
+    @Nullable
+    public Alm get(@NonNull String simNo, @NonNull String typ, @Nullable String subTyp) {
+        return byKey.get(new Key(simNo, typ, subTyp));
+    }
+
+    /**
+     * 按 ID 取活动报警
+     *
+     * @param id 报警 ID
+     * @return 活动报警，不存在时返回 null
+     */
+    @Nullable
+    public Alm getById(@NonNull String id) {
+        return byId.get(id);
+    }
+
+    /**
+     * 判断报警是否已开启
+     *
+     * @param simNo  终端识别号
+     * @param typ    报警类型
+     * @param subTyp 报警子类型，可为 null
+     * @return 已开启时返回 true
+     */
+    public boolean isActive(@NonNull String simNo, @NonNull String typ, @Nullable String subTyp) {
+        return byKey.containsKey(new Key(simNo, typ, subTyp));
+    }
+
+    /**
+     * 取终端的全部活动报警。本方法遍历整个索引，用于终端下线等不频繁的场合。
+     *
+     * @param simNo 终端识别号
+     * @return 活动报警列表
+     */
+    public List<Alm> getAll(@NonNull String simNo) {
+        var r = new ArrayList<Alm>();
+        byKey.forEach((k, alm) -> {
+            if (simNo.equals(k.simNo()))
+                r.add(alm);
+        });
+        return r;
+    }
+
+    public int size() {
+        return byId.size();
+    }
+
+    /**
+     * 登记活动报警。未开启（`actv` 为 false）或最近已关闭的报警被忽略。
+     *
+     * @param alm 报警
+     */
+    public synchronized void put(@NonNull Alm alm) {
+        if (!alm.isActv() || alm.getId() == null || alm.getSimNo() == null || alm.getTyp() == null)
+            return;
+        if (recentlyClosed.containsKey(alm.getId()))
+            return;
+
+        Alm old = byKey.put(keyOf(alm), alm);
+        if (old != null && !Objects.equals(old.getId(), alm.getId()))
+            byId.remove(old.getId());
+        byId.put(alm.getId(), alm);
+    }
+
+    /**
+     * 移除未能保存的报警。报警已被同一键的新报警替换时不做处理。
+     *
+     * @param alm 报警
+     * @return 报警在索引中并已移除时返回 true
+     */
+    public synchronized boolean remove(@NonNull Alm alm) {
+        if (alm.getId() == null || !byId.remove(alm.getId(), alm))
+            return false;
+
+        byKey.remove(keyOf(alm), alm);
+        return true;
+    }
+
+    /**
+     * 移除活动报警，返回以关闭请求填写了结束信息和持续时长（`dur`，单位：秒）的新报警对象。
+     * 索引中的报警对象不被修改，它可能仍在其它地方使用（如在 `AlmSaver` 中排队等待保存）。
+     * 报警不在索引中时也记住其 ID，之后的 `put()` 忽略该报警。
+     *
+     * @param req 关闭报警请求
+     * @return 已关闭的报警，只包含报警的标识、开始信息、驾驶员信息和结束信息；报警不在索引中时返回 null
+     */
+    @Nullable
+    public synchronized Alm close(@NonNull CloseAlmReq req) {
+        if (req.getId() != null)
+            recentlyClosed.put(req.getId(), Boolean.TRUE);
+
+        Alm alm = byId.remove(req.getId());
+        if (alm == null)
+            return null;
+
+        byKey.remove(keyOf(alm), alm);
+
+        return closedAlmOf(alm, req);
+    }
+
+    private static Alm closedAlmOf(Alm alm, CloseAlmReq req) {
+        Alm r = new Alm();
+        r.setId(alm.getId());
+        r.setAppId(alm.getAppId());
+        r.setSimNo(alm.getSimNo());
+        r.setVehId(alm.getVehId());
+        r.setGrpId(alm.getGrpId());
+        r.setTrkId(alm.getTrkId());
+        r.setTyp(alm.getTyp());
+        r.setSubTyp(alm.getSubTyp());
+        r.setSrc(alm.getSrc());
+        r.setLvl(alm.getLvl());
+        r.setPlatRgnId(alm.getPlatRgnId());
+        r.setDrvName(alm.getDrvName());
+        r.setDrvNo(alm.getDrvNo());
+
+        r.setTm1(alm.getTm1());
+        r.setRecvTm1(alm.getRecvTm1());
+        r.setLng1(alm.getLng1());
+        r.setLat1(alm.getLat1());
+        r.setSpd1(alm.getSpd1());
+        r.setAlt1(alm.getAlt1());
+        r.setDir1(alm.getDir1());
+
+        r.setActv(false);
+        r.setTm0(req.getTm0());
+        r.setRecvTm0(req.getRecvTm0());
+        r.setLng0(req.getLng0());
+        r.setLat0(req.getLat0());
+        Long beginTm = alm.getTm1();
+        Long endTm = req.getTm0();
+        if (beginTm != null && endTm != null)
+            r.setDur((int) ((endTm - beginTm) / 1000));
+
+        return r;
+    }
+
+    /**
+     * 清空索引
+     */
+    public synchronized void clear() {
+        byKey.clear();
+        byId.clear();
+        recentlyClosed.clear();
+    }
+
+    @Override
+    public void onAlmsCreated(Alm[] alms, int count) {
+        for (int i = 0; i < count; i++)
+            put(alms[i]);
+    }
+
+    @Override
+    public void onAlmsClosed(List<CloseAlmReq> reqs, boolean[] results) {
+        // a false result means the alarm is not active in the database any more, drop it as well
+        for (CloseAlmReq req : reqs)
+            close(req);
+    }
+
+    /**
+     * 从 `t_alm` 加载活动报警
+     *
+     * @param almDao 报警 DAO
+     * @return 加载的报警数
+     */
+    public int warmUp(@NonNull AlmDao almDao) {
+        List<Alm> alms = almDao.qryActiveAlms();
+        for (Alm alm : alms)
+            put(alm);
+
+        LOGGER.info("{} active alarms loaded.", alms.size());
+        return alms.size();
+    }
+}
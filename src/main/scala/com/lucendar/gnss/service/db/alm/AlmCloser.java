@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.lucendar.gnss.sdk.alm.CloseAlmReq;
+import com.lucendar.gnss.service.db.AsyncBatchWriter;
+import com.lucendar.gnss.service.db.BatchWriterConfig;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 异步报警关闭器。
+ * <p>
+ * `closeAlm()` 将关闭请求放入队列并立即返回，请求按批大小或时间间隔累积后经 `AlmDao.closeAlms()` 一次往返批量关闭，
+ * 结果通过返回的 `CompletableFuture` 通知。请求按报警 ID 分派到各写入线程，同一报警的请求按提交顺序处理。
+ * <p>
+ * 与 `AlmSaver` 同时使用时，报警可能尚未保存即被关闭，此时结果为 false，调用者可在创建报警的 future 完成后再提交关闭请求。
+ */
+public class AlmCloser extends AsyncBatchWriter<AlmCloser.Entry> {
+
+    record Entry(CloseAlmReq req, CompletableFuture<Boolean> future) {
+    }
+
+    private final AlmDao almDao;
+
+    /**
+     * @param almDao 报警 DAO
+     * @param config 写入器配置
+     */
+    public AlmCloser(@NonNull AlmDao almDao, @NonNull BatchWriterConfig config) {
+        super("alm-closer", config);
+        this.almDao = almDao;
+    }
+
+    /**
+     * 异步关闭报警
+     *
+     * @param req 关闭报警请求
+     * @return 关闭结果。报警存在且关闭成功时完成为 true；队列已满时以 `RejectedExecutionException` 异常完成；
+     * 执行失败时以执行异常完成
+     */
+    public CompletableFuture<Boolean> closeAlm(@NonNull CloseAlmReq req) {
+        var future = new CompletableFuture<Boolean>();
+        if (!submit(new Entry(req, future)))
+            future.completeExceptionally(new RejectedExecutionException("Alarm close queue is full or closed."));
+
+        return future;
+    }
+
+    @Override
+    protected void onDropped(Entry entry) {
+        entry.future().completeExceptionally(
+                new RejectedExecutionException("Alarm close request dropped because queue is full."));
+    }
+
+    @Override
+    protected int shardOf(Entry entry) {
+        String id = entry.req().getId();
+        return id != null ? id.hashCode() : 0;
+    }
+
+    @Override
+    protected void flush(int shard, @NonNull List<Entry> batch) {
+        var reqs = new ArrayList<CloseAlmReq>(batch.size());
+        for (Entry e : batch)
+            reqs.add(e.req());
+
+        boolean[] r;
+        try {
+            r = almDao.closeAlms(reqs);
+        } catch (Throwable t) {
+            for (Entry e : batch)
+                e.future().completeExceptionally(t);
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++)
+            batch.get(i).future().complete(r[i]);
+    }
+}
@@ -3,6 +3,7 @@ package com.lucendar.gnss.service.db.alm;
 import com.lucendar.gnss.sdk.alm.Alm;
 import com.lucendar.gnss.sdk.alm.AlmParam;
 import com.lucendar.gnss.sdk.alm.CloseAlmReq;
+import com.lucendar.gnss.service.db.BatchBisector;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -17,5 +18,44 @@ public interface AlmDao {
     @NonNull
     Alm createAlm(@NonNull Alm alm);
     void closeAlm(@NonNull CloseAlmReq close);
+
+    /**
+     * 批量关闭报警。默认实现逐个调用 `closeAlm()`，不能得知报警是否存在，各请求的结果均为 true。
+     *
+     * @param reqs 关闭报警请求
+     * @return 各请求的结果，与 `reqs` 一一对应。报警存在且关闭成功时为 true
+     */
+    default boolean[] closeAlms(@NonNull List<CloseAlmReq> reqs) {
+        boolean[] r = new boolean[reqs.size()];
+        for (int i = 0; i < r.length; i++) {
+            closeAlm(reqs.get(i));
+            r[i] = true;
+        }
+        return r;
+    }
+
     void bulkSaveAlms(@NonNull Alm[] alms, int count);
+
+    /**
+     * 批量保存报警，返回各报警的结果。本方法不抛出异常。
+     *
+     * @param alms  报警数组
+     * @param count 报警数量
+     * @return 保存结果。不在 `getUnwritten()` 和 `getDeadLetters()` 中的报警已保存
+     */
+    default BatchBisector.Result<Alm> saveAlms(@NonNull Alm[] alms, int count) {
+        try {
+            bulkSaveAlms(alms, count);
+            return BatchBisector.Result.success();
+        } catch (Throwable t) {
+            return BatchBisector.Result.failure(alms, count, t);
+        }
+    }
+
+    /**
+     * 查询全部活动报警（`f_actv` 为 true）
+     *
+     * @return 活动报警列表，只包含报警的标识、开始信息和驾驶员信息，不包含附加信息
+     */
+    List<Alm> qryActiveAlms();
 }
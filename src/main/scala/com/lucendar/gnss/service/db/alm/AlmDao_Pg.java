@@ -7,39 +7,125 @@ import com.lucendar.gnss.sdk.alm.AlmParam;
 import com.lucendar.gnss.sdk.alm.CloseAlmReq;
 import com.lucendar.gnss.sdk.db.RecIdProvider;
 import com.lucendar.gnss.service.db.AbstractJdbcDao;
-import com.lucendar.gnss.service.db.RowAccessor;
-import com.lucendar.gnss.service.memdb.LocalMemDb;
-import com.lucendar.gnss.service.memdb.MemDb;
-import de.bytefish.pgbulkinsert.row.SimpleRowWriter;
+import com.lucendar.gnss.service.db.BatchBisector;
+import com.lucendar.gnss.service.db.DeadLetterStore;
+import com.lucendar.gnss.service.db.PgBinaryCopyWriter;
 import de.bytefish.pgbulkinsert.util.PostgreSqlUtils;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.postgresql.PGConnection;
-import org.postgresql.util.PSQLException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
+import java.time.Duration;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
 
-    private static final String ALM_PARAMS_PREFIX = MemDb.PUBLIC_PREFIX + "ap:";
-
     private static final Logger LOGGER = LoggerFactory.getLogger("gnss.almDaoPg");
 
-    private final RecIdProvider almIdProvider;
-    private final MemDb memDb;
+    /**
+     * 报警参数缓存的默认刷新间隔
+     */
+    public static final Duration DEFAULT_ALM_PARAM_REFRESH_INTERVAL = Duration.ofMinutes(1);
 
+    private final RecIdProvider almIdProvider;
+    private final AlmParamCache almParamCache;
+    private final AlmParamChangeBus almParamChangeBus;
+    private final CopyOnWriteArrayList<AlmListener> almListeners = new CopyOnWriteArrayList<>();
+    private volatile DeadLetterStore<Alm> almDeadLetterStore;
+
+    /**
+     * @param ds                      数据源
+     * @param sqlDialect              SQL方言
+     * @param almIdProvider           报警 ID 生成器
+     * @param cached                  是否缓存报警参数
+     * @param almParamRefreshInterval 报警参数缓存的刷新间隔
+     * @param almParamChangeBus       报警参数变更通知通道。不为 null 时，本节点更新报警参数后通知其它节点，
+     *                                并在收到其它节点的通知时使缓存失效
+     */
     public AlmDao_Pg(@NonNull DataSource ds,
                      @NonNull SqlDialect sqlDialect,
                      @NonNull RecIdProvider almIdProvider,
-                     boolean cached) {
+                     boolean cached,
+                     @NonNull Duration almParamRefreshInterval,
+                     @Nullable AlmParamChangeBus almParamChangeBus) {
         super(ds, sqlDialect);
         this.almIdProvider = almIdProvider;
-        memDb = cached ? new LocalMemDb() : null;
+        this.almParamCache = cached ? new AlmParamCache(this::dbGetAlmParams, almParamRefreshInterval) : null;
+        this.almParamChangeBus = almParamChangeBus;
+
+        if (almParamCache != null && almParamChangeBus != null)
+            almParamChangeBus.subscribe(this::onAlmParamChanged);
+    }
+
+    public AlmDao_Pg(@NonNull DataSource ds,
+                     @NonNull SqlDialect sqlDialect,
+                     @NonNull RecIdProvider almIdProvider,
+                     boolean cached,
+                     @NonNull Duration almParamRefreshInterval) {
+        this(ds, sqlDialect, almIdProvider, cached, almParamRefreshInterval, null);
+    }
+
+    public AlmDao_Pg(@NonNull DataSource ds,
+                     @NonNull SqlDialect sqlDialect,
+                     @NonNull RecIdProvider almIdProvider,
+                     boolean cached) {
+        this(ds, sqlDialect, almIdProvider, cached, DEFAULT_ALM_PARAM_REFRESH_INTERVAL);
+    }
+
+    /**
+     * @return 报警参数缓存，未启用缓存时返回 null
+     */
+    @Nullable
+    public AlmParamCache getAlmParamCache() {
+        return almParamCache;
+    }
+
+    /**
+     * 设置报警死信存储。不为 null 时，`bulkSaveAlms()` 因数据错误失败的批次被二分重试，出错的报警放入该存储，
+     * 其余报警正常保存。隔离的报警不会使 `bulkSaveAlms()` 抛出异常，`saveAlms()` 的结果中列出这些报警。
+     *
+     * @param store 死信存储，为 null 时不隔离出错的报警，整批失败
+     */
+    public void setAlmDeadLetterStore(@Nullable DeadLetterStore<Alm> store) {
+        this.almDeadLetterStore = store;
+    }
+
+    public void addAlmListener(@NonNull AlmListener listener) {
+        almListeners.add(listener);
+    }
+
+    public void removeAlmListener(@NonNull AlmListener listener) {
+        almListeners.remove(listener);
+    }
+
+    private void notifyAlmsCreated(Alm[] alms, int count) {
+        almListeners.forEach(l -> {
+            try {
+                l.onAlmsCreated(alms, count);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred when notify alarms created.", t);
+            }
+        });
+    }
+
+    private void notifyAlmsClosed(List<CloseAlmReq> reqs, boolean[] results) {
+        almListeners.forEach(l -> {
+            try {
+                l.onAlmsClosed(reqs, results);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred when notify alarms closed.", t);
+            }
+        });
     }
 
     private static final String SELECT_ALM_PARAM = """
@@ -76,6 +162,15 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
         }
     };
 
+    private void onAlmParamChanged(String appId, String typ) {
+        if (AlmParamChangeBus.ALL_APPS.equals(appId))
+            almParamCache.invalidateAll();
+        else
+            almParamCache.invalidate(appId);
+
+        LOGGER.debug("Alarm parameters of app {} invalidated.", appId);
+    }
+
     @NonNull
     public List<AlmParam> dbGetAlmParams(@NonNull String appId) {
         var sql = SELECT_ALM_PARAM + " WHERE f_app_id=?";
@@ -83,8 +178,14 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
         return qryList(sql, DbHelper.strStatementSetter(appId), AlmParamMapper);
     }
 
+    /**
+     * 取应用的全部报警参数。启用缓存时返回共享的不可修改列表，调用者不应修改。
+     */
     @Override
     public List<AlmParam> getAlmParams(@NonNull String appId) {
+        if (almParamCache != null)
+            return almParamCache.getAll(appId);
+
         return dbGetAlmParams(appId);
     }
 
@@ -94,22 +195,16 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
         return qryObject(sql, DbHelper.twoStrStatementSetter(appId, typ), AlmParamMapper);
     }
 
+    /**
+     * 取报警参数。启用缓存时返回共享的缓存对象，调用者不应修改。
+     */
     @Nullable
     @Override
     public AlmParam getAlmParam(@NonNull String appId, @NonNull String almTyp) {
-        if (memDb != null) {
-            AlmParam r = memDb.getJsonObject(ALM_PARAMS_PREFIX,
-                    appId + ":" + almTyp,
-                    AlmParam.class);
-            if (r != null)
-                return r;
-        }
+        if (almParamCache != null)
+            return almParamCache.get(appId, almTyp);
 
-        var ap = dbGetAlmParam(appId, almTyp);
-        if (ap != null && memDb != null)
-            memDb.setJsonObject(ALM_PARAMS_PREFIX, appId + ":" + almTyp, ap);
-
-        return ap;
+        return dbGetAlmParam(appId, almTyp);
     }
 
     private static final String UPDATE_ALM_PARAM = """
@@ -137,15 +232,20 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
             setter.setShort(almParam.getCaptureChanMask());
             setter.setBool(almParam.isLiveVidMon());
             setter.setShort(almParam.getLiveVidMonChanMask());
+            setter.setString(almParam.getAppId());
+            setter.setString(almParam.getTyp());
         });
     }
 
     @Override
     public void updateAlmParam(@NonNull AlmParam almParam) {
-        if (memDb != null)
-            memDb.setJsonObject(ALM_PARAMS_PREFIX, almParam.getAppId() + ":" + almParam.getTyp(), almParam);
-
         dbUpdateAlmParam(almParam);
+
+        if (almParamCache != null)
+            almParamCache.put(almParam);
+
+        if (almParamChangeBus != null)
+            almParamChangeBus.publish(almParam.getAppId(), almParam.getTyp());
     }
 
     private static final String INSERT_ALM = """
@@ -241,6 +341,9 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
 
         update(INSERT_ALM, insertAlmSetter(alm));
 
+        if (!almListeners.isEmpty())
+            notifyAlmsCreated(new Alm[]{alm}, 1);
+
         return alm;
     }
 
@@ -248,6 +351,7 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
     public void closeAlm(@NonNull CloseAlmReq req) {
         String CALL = "{ ? = call p_close_alm(?, ?, ?, ?, ?::real,   ?::real, ?, ?, ?, ?::d_str_id, ?) }";
 
+        boolean[] result = new boolean[1];
         call(CALL, (conn, bind) -> {
             bind.registerOutParameter(Types.BOOLEAN);
 
@@ -267,8 +371,91 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
 
             bind.execute();
 
-            return bind.getBool(1);
+            result[0] = bind.getBool(1);
+            return result[0];
         });
+
+        if (!almListeners.isEmpty())
+            notifyAlmsClosed(Collections.singletonList(req), result);
+    }
+
+    // One row per request, p_close_alm() is called for each row in request order, in a single statement.
+    private static final String CLOSE_ALMS = """
+            SELECT p_close_alm(to_timestamp(u.tm0 / 1000.0), to_timestamp(u.recv_tm0 / 1000.0), u.lng0, u.lat0, u.spd0,
+                               u.rec_spd0, u.alt0, u.dir0, u.addt0, u.id::d_str_id, to_timestamp(u.tm1 / 1000.0))
+            FROM unnest(?::int8[], ?::int8[], ?::float8[], ?::float8[], ?::real[],
+                        ?::real[], ?::int2[], ?::int2[], ?::text[], ?::text[], ?::int8[])
+                     WITH ORDINALITY AS u(tm0, recv_tm0, lng0, lat0, spd0, rec_spd0, alt0, dir0, addt0, id, tm1, ord)
+            ORDER BY u.ord
+            """;
+
+    /**
+     * 批量关闭报警。所有请求以数组参数在一条语句中发送，一次往返完成。
+     */
+    @Override
+    public boolean[] closeAlms(@NonNull List<CloseAlmReq> reqs) {
+        final int count = reqs.size();
+        if (count == 0)
+            return new boolean[0];
+
+        Long[] tm0 = new Long[count];
+        Long[] recvTm0 = new Long[count];
+        Double[] lng0 = new Double[count];
+        Double[] lat0 = new Double[count];
+        Float[] spd0 = new Float[count];
+        Float[] recSpd0 = new Float[count];
+        Integer[] alt0 = new Integer[count];
+        Integer[] dir0 = new Integer[count];
+        String[] addt0 = new String[count];
+        String[] id = new String[count];
+        Long[] tm1 = new Long[count];
+        for (int i = 0; i < count; i++) {
+            CloseAlmReq req = reqs.get(i);
+            tm0[i] = req.getTm0();
+            recvTm0[i] = req.getRecvTm0();
+            lng0[i] = req.getLng0();
+            lat0[i] = req.getLat0();
+            spd0[i] = req.getSpd0();
+            recSpd0[i] = req.getRecSpd0();
+            alt0[i] = Integer.valueOf(req.getAlt0());
+            dir0[i] = Integer.valueOf(req.getDir0());
+            addt0[i] = req.addt0ToJson();
+            id[i] = req.getId();
+            tm1[i] = req.getTm1();
+        }
+
+        boolean[] results = dbAction(conn -> {
+            try (PreparedStatement ps = conn.prepareStatement(CLOSE_ALMS)) {
+                ps.setArray(1, conn.createArrayOf("int8", tm0));
+                ps.setArray(2, conn.createArrayOf("int8", recvTm0));
+                ps.setArray(3, conn.createArrayOf("float8", lng0));
+                ps.setArray(4, conn.createArrayOf("float8", lat0));
+                ps.setArray(5, conn.createArrayOf("float4", spd0));
+                ps.setArray(6, conn.createArrayOf("float4", recSpd0));
+                ps.setArray(7, conn.createArrayOf("int4", alt0));
+                ps.setArray(8, conn.createArrayOf("int4", dir0));
+                ps.setArray(9, conn.createArrayOf("text", addt0));
+                ps.setArray(10, conn.createArrayOf("text", id));
+                ps.setArray(11, conn.createArrayOf("int8", tm1));
+
+                boolean[] r = new boolean[count];
+                try (ResultSet rs = ps.executeQuery()) {
+                    int i = 0;
+                    while (rs.next() && i < count)
+                        r[i++] = rs.getBoolean(1);
+                }
+
+                return r;
+            } catch (SQLException e) {
+                LOGGER.error("Error occurred when close alarms.", e);
+                throw new RuntimeException(e);
+            }
+        });
+
+        if (!almListeners.isEmpty())
+            notifyAlmsClosed(reqs, results);
+
+        return results;
     }
 
     private static final String[] ALM_COLUMNS = new String[]{
@@ -320,84 +507,162 @@ public class AlmDao_Pg extends AbstractJdbcDao implements AlmDao {
             "f_superv_reply_needed"
     };
 
-    private final static SimpleRowWriter.Table AlmTable = new SimpleRowWriter.Table("t_alm", ALM_COLUMNS);
+    private final static PgBinaryCopyWriter.Table AlmTable = new PgBinaryCopyWriter.Table("t_alm", ALM_COLUMNS);
 
     @Override
     public void bulkSaveAlms(@NonNull Alm[] alms, int count) {
+        var r = saveAlms(alms, count);
+        if (!r.isSuccess())
+            rethrow(r.getError());
+    }
+
+    /**
+     * 批量保存报警，返回各报警的结果。本方法不抛出异常。
+     * <p>
+     * 设置了死信存储（见 `setAlmDeadLetterStore()`）时，因数据错误失败的批次被二分重试，出错的报警放入死信存储；
+     * 否则一次写入失败时全部报警都未写入。
+     */
+    @Override
+    public BatchBisector.Result<Alm> saveAlms(@NonNull Alm[] alms, int count) {
         if (count == 0)
-            return;
+            return BatchBisector.Result.success();
+
+        DeadLetterStore<Alm> deadLetterStore = almDeadLetterStore;
+        if (deadLetterStore != null) {
+            var r = BatchBisector.execute(alms, count, this::copyAlms, deadLetterStore);
+            if (r.getDeadLettered() > 0)
+                LOGGER.warn("{} of {} alarms moved to dead letter store after {} attempts.",
+                        r.getDeadLettered(), count, r.getAttempts());
 
-//        LOGGER.debug("column count: {}", ALM_COLUMNS.length);
+            if (!r.isSuccess())
+                LOGGER.error("{} of {} alarms not saved.", r.getUnwritten().size(), count, r.getError());
+
+            return r;
+        }
 
+        try {
+            copyAlms(alms, count);
+            return BatchBisector.Result.success();
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred when bulk save alarm to database", t);
+            return BatchBisector.Result.failure(alms, count, t);
+        }
+    }
+
+    private static void rethrow(Throwable t) {
+        String sqlState = BatchBisector.sqlStateOf(t);
+        if (sqlState != null) {
+            LOGGER.error("PGSQL error: {}", sqlState);
+        }
+
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else
+            throw new RuntimeException(t);
+    }
+
+    private void copyAlms(Alm[] alms, int count) throws SQLException {
         try (Connection conn = ds.getConnection()) {
             PGConnection pg = PostgreSqlUtils.getPGConnection(conn);
-            try (SimpleRowWriter writer = new SimpleRowWriter(AlmTable, pg)) {
+            try (PgBinaryCopyWriter writer = new PgBinaryCopyWriter(pg, AlmTable)) {
                 for (int i = 0; i < count; i++) {
                     Alm alm = alms[i];
-                    writer.startRow(row -> {
-                        var acc = new RowAccessor(row);
-
-                        acc.str(alm.getId()); // "f_id",
-                        acc.str(alm.getAppId()); // "f_app_id",
-                        acc.str(alm.getSimNo()); //    "f_sim_no",
-                        acc.str(alm.getVehId()); //    "f_veh_id",
-                        acc.str(alm.getGrpId()); //    "f_grp_id",
-                        acc.str(alm.getTrkId()); //    "f_trk_id",
-                        acc.str(alm.getTyp()); //    "f_typ",
-                        acc.str(alm.getSubTyp()); //    "f_sub_typ",
-                        acc.int16(alm.getSrc()); //    "f_src",
-                        acc.int16(alm.getLvl()); //    "f_lvl",
-                        acc.boo(alm.isActv()); //    "f_actv",
-
-                        acc.tsz(alm.getTm1()); //    "f_tm1",
-                        acc.tsz(alm.getRecvTm1()); //    "f_recv_tm1",
-                        acc.dbl(alm.getLng1()); //    "f_lng1",
-                        acc.dbl(alm.getLat1()); //    "f_lat1",
-                        acc.fld(alm.getSpd1()); //    "f_spd1",
-                        acc.fld(alm.getRecSpd1()); //    "f_rec_spd1",
-                        acc.int16(alm.getAlt1()); //    "f_alt1",
-                        acc.int16(alm.getDir1()); //    "f_dir1",
-                        acc.str(alm.addt1ToJson()); //    "f_addt1",
-
-                        acc.tsz(alm.getTm0()); //    "f_tm0",
-                        acc.tsz(alm.getRecvTm0()); //    "f_recv_tm0",
-                        acc.dbl(alm.getLng0()); //    "f_lng0",
-                        acc.dbl(alm.getLat0()); //    "f_lat0",
-                        acc.fld(alm.getSpd0()); //    "f_spd0",
-                        acc.fld(alm.getRecSpd0()); //    "f_rec_spd0",
-                        acc.int16(alm.getAlt0()); //    "f_alt0",
-                        acc.int16(alm.getDir0()); //    "f_dir0",
-                        acc.str(alm.addt0ToJson()); //    "f_addt0",
-
-                        acc.int32(alm.getDur()); //     "f_dur",
-                        acc.int16(alm.getAttCnt()); //  "f_att_cnt",
-                        acc.str(alm.getDrvName()); //   "f_drv_name",
-                        acc.str(alm.getDrvNo()); //     "f_drv_no",
-                        acc.str(alm.getPlatRgnId()); // "f_plat_rgn_id",
-                        acc.int16(alm.getProcSt()); //  "f_proc_st",
-                        acc.int16(alm.getProcMeth()); //"f_proc_meth",
-                        acc.tsz(alm.getProcTm()); //    "f_proc_tm",
-                        acc.str(alm.getOprName()); //   "f_opr_name",
-                        acc.str(alm.getOprCorpName()); //"f_opr_corp_name",
-                        acc.str(alm.getSupervId()); //   "f_superv_id",
-                        acc.tsz(alm.getSupervTm()); //   "f_superv_tm",
-                        acc.tsz(alm.getSupervDeadline()); //  "f_superv_deadline",
-                        acc.boo(alm.getSupervReplyNeeded()); // "f_superv_reply_needed"
-
-//                        LOGGER.debug("write {} values", acc.getIndex());
-                    });
+                    writer.startRow();
+
+                    writer.text(alm.getId()); // "f_id",
+                    writer.text(alm.getAppId()); // "f_app_id",
+                    writer.text(alm.getSimNo()); //    "f_sim_no",
+                    writer.text(alm.getVehId()); //    "f_veh_id",
+                    writer.text(alm.getGrpId()); //    "f_grp_id",
+                    writer.text(alm.getTrkId()); //    "f_trk_id",
+                    writer.text(alm.getTyp()); //    "f_typ",
+                    writer.text(alm.getSubTyp()); //    "f_sub_typ",
+                    writer.int2(alm.getSrc()); //    "f_src",
+                    writer.int2(alm.getLvl()); //    "f_lvl",
+                    writer.bool(alm.isActv()); //    "f_actv",
+
+                    writer.tsz(alm.getTm1()); //    "f_tm1",
+                    writer.tsz(alm.getRecvTm1()); //    "f_recv_tm1",
+                    writer.float8(alm.getLng1()); //    "f_lng1",
+                    writer.float8(alm.getLat1()); //    "f_lat1",
+                    writer.float4(alm.getSpd1()); //    "f_spd1",
+                    writer.float4(alm.getRecSpd1()); //    "f_rec_spd1",
+                    writer.int2(alm.getAlt1()); //    "f_alt1",
+                    writer.int2(alm.getDir1()); //    "f_dir1",
+                    writer.text(alm.addt1ToJson()); //    "f_addt1",
+
+                    writer.tsz(alm.getTm0()); //    "f_tm0",
+                    writer.tsz(alm.getRecvTm0()); //    "f_recv_tm0",
+                    writer.float8(alm.getLng0()); //    "f_lng0",
+                    writer.float8(alm.getLat0()); //    "f_lat0",
+                    writer.float4(alm.getSpd0()); //    "f_spd0",
+                    writer.float4(alm.getRecSpd0()); //    "f_rec_spd0",
+                    writer.int2(alm.getAlt0()); //    "f_alt0",
+                    writer.int2(alm.getDir0()); //    "f_dir0",
+                    writer.text(alm.addt0ToJson()); //    "f_addt0",
+
+                    writer.int4(alm.getDur()); //     "f_dur",
+                    writer.int2(alm.getAttCnt()); //  "f_att_cnt",
+                    writer.text(alm.getDrvName()); //   "f_drv_name",
+                    writer.text(alm.getDrvNo()); //     "f_drv_no",
+                    writer.text(alm.getPlatRgnId()); // "f_plat_rgn_id",
+                    writer.int2(alm.getProcSt()); //  "f_proc_st",
+                    writer.int2(alm.getProcMeth()); //"f_proc_meth",
+                    writer.tsz(alm.getProcTm()); //    "f_proc_tm",
+                    writer.text(alm.getOprName()); //   "f_opr_name",
+                    writer.text(alm.getOprCorpName()); //"f_opr_corp_name",
+                    writer.text(alm.getSupervId()); //   "f_superv_id",
+                    writer.tsz(alm.getSupervTm()); //   "f_superv_tm",
+                    writer.tsz(alm.getSupervDeadline()); //  "f_superv_deadline",
+                    writer.bool(alm.getSupervReplyNeeded()); // "f_superv_reply_needed"
                 }
             }
-        } catch (Throwable t) {
-            LOGGER.error("Error occurred when bulk save alarm to database", t);
-            if (t.getCause() instanceof PSQLException psqlex) {
-                LOGGER.error("PGSQL error: {}", psqlex.getSQLState());
-            }
 
-            if (t instanceof RuntimeException) {
-                throw (RuntimeException) t;
-            } else
-                throw new RuntimeException(t);
+            if (!almListeners.isEmpty())
+                notifyAlmsCreated(alms, count);
+        }
+    }
+
+    private static final String QRY_ACTIVE_ALMS = """
+            SELECT f_id, f_app_id, f_sim_no, f_veh_id, f_grp_id,
+                   f_trk_id, f_typ, f_sub_typ, f_src, f_lvl,
+                   f_tm1, f_recv_tm1, f_lng1, f_lat1, f_spd1,
+                   f_alt1, f_dir1, f_drv_name, f_drv_no, f_plat_rgn_id
+            FROM t_alm
+            WHERE f_actv
+            """;
+
+    public static final ResultSetMapper<Alm> ActiveAlmMapper = new ResultSetMapper<>() {
+        @Override
+        public Alm map(ResultSetAccessor acc) {
+            Alm alm = new Alm();
+            alm.setId(acc.str());
+            alm.setAppId(acc.str());
+            alm.setSimNo(acc.str());
+            alm.setVehId(acc.str());
+            alm.setGrpId(acc.str());
+            alm.setTrkId(acc.str());
+            alm.setTyp(acc.str());
+            alm.setSubTyp(acc.str());
+            alm.setSrc(acc.int32());
+            alm.setLvl(acc.int32Object());
+            alm.setActv(true);
+            alm.setTm1(acc.epochMillisLong());
+            alm.setRecvTm1(acc.epochMillisLong());
+            alm.setLng1(acc.float8());
+            alm.setLat1(acc.float8());
+            alm.setSpd1(acc.float4());
+            alm.setAlt1(acc.int32());
+            alm.setDir1(acc.int32());
+            alm.setDrvName(acc.str());
+            alm.setDrvNo(acc.str());
+            alm.setPlatRgnId(acc.str());
+            return alm;
         }
+    };
+
+    @Override
+    public List<Alm> qryActiveAlms() {
+        return qryList(QRY_ACTIVE_ALMS, null, ActiveAlmMapper);
     }
 }
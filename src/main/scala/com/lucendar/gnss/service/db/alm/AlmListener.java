@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.lucendar.gnss.sdk.alm.Alm;
+import com.lucendar.gnss.sdk.alm.CloseAlmReq;
+
+import java.util.List;
+
+/**
+ * 报警变更监听器。由 `AlmDao_Pg.addAlmListener()` 注册。
+ */
+public interface AlmListener {
+
+    /**
+     * 报警已保存。本方法在保存报警的线程中调用，可能被多个线程并发调用，不应阻塞。
+     *
+     * @param alms  已保存的报警数组。调用返回后数组可能被复用，不应保留数组的引用
+     * @param count 报警数量
+     */
+    void onAlmsCreated(Alm[] alms, int count);
+
+    /**
+     * 报警关闭请求已执行。本方法在执行关闭的线程中调用，可能被多个线程并发调用，不应阻塞。
+     *
+     * @param reqs    关闭报警请求
+     * @param results 各请求的结果，与 `reqs` 一一对应
+     */
+    void onAlmsClosed(List<CloseAlmReq> reqs, boolean[] results);
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.lucendar.gnss.sdk.alm.AlmParam;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 报警参数缓存。
+ * <p>
+ * 以 appId 为键缓存该应用的全部报警参数（typ -> AlmParam），未命中时用一次查询加载该应用的全部参数，
+ * 缓存项在 `refreshInterval` 后被访问时于后台刷新，刷新期间继续返回旧值。命中时不拼接字符串，也不反序列化。
+ * <p>
+ * `get()`/`getAll()` 返回的 `AlmParam` 对象和列表由所有调用者共享，命中时不分配新对象，调用者不应修改。
+ */
+public class AlmParamCache {
+
+    /**
+     * 一个应用的全部报警参数
+     */
+    private static final class Params {
+        final Map<String, AlmParam> byTyp;
+        final List<AlmParam> all;
+
+        Params(Map<String, AlmParam> byTyp) {
+            this.byTyp = byTyp;
+            this.all = List.copyOf(byTyp.values());
+        }
+    }
+
+    private final LoadingCache<String, Params> cache;
+
+    /**
+     * @param loader          加载一个应用的全部报警参数
+     * @param refreshInterval 刷新间隔
+     */
+    public AlmParamCache(@NonNull Function<String, List<AlmParam>> loader, @NonNull Duration refreshInterval) {
+        this.cache = Caffeine.newBuilder()
+                .refreshAfterWrite(refreshInterval)
+                .build(appId -> toParams(loader.apply(appId)));
+    }
+
+    private static Params toParams(List<AlmParam> list) {
+        var m = new HashMap<String, AlmParam>(list.size() * 2);
+        for (AlmParam p : list)
+            m.put(p.getTyp(), p);
+        return new Params(Map.copyOf(m));
+    }
+
+    private static AlmParam copyOf(AlmParam p) {
+        var r = new AlmParam();
+        r.setAppId(p.getAppId());
+        r.setTyp(p.getTyp());
+        r.setDisabled(p.isDisabled());
+        r.setStat(p.isStat());
+        r.setSendVoice(p.isSendVoice());
+        r.setVoiceText(p.getVoiceText());
+        r.setNotifyClnt(p.isNotifyClnt());
+        r.setCapture(p.isCapture());
+        r.setCaptureChanMask(p.getCaptureChanMask());
+        r.setLiveVidMon(p.isLiveVidMon());
+        r.setLiveVidMonChanMask(p.getLiveVidMonChanMask());
+        return r;
+    }
+
+    /**
+     * 取报警参数，返回的对象为共享的缓存对象，不应修改
+     *
+     * @param appId  应用 ID
+     * @param almTyp 报警类型
+     * @return 报警参数，不存在时返回 null
+     */
+    @Nullable
+    public AlmParam get(@NonNull String appId, @NonNull String almTyp) {
+        return cache.get(appId).byTyp.get(almTyp);
+    }
+
+    /**
+     * 取应用的全部报警参数，返回的列表及其中的对象为共享的缓存对象，不应修改
+     *
+     * @param appId 应用 ID
+     * @return 报警参数列表，不可修改
+     */
+    public List<AlmParam> getAll(@NonNull String appId) {
+        return cache.get(appId).all;
+    }
+
+    /**
+     * 以给定的报警参数更新已缓存的应用。应用未缓存时不做任何事，待下次访问时加载。
+     *
+     * @param almParam 报警参数，缓存其副本
+     */
+    public void put(@NonNull AlmParam almParam) {
+        AlmParam p = copyOf(almParam);
+        cache.asMap().computeIfPresent(p.getAppId(), (appId, params) -> {
+            var r = new HashMap<>(params.byTyp);
+            r.put(p.getTyp(), p);
+            return new Params(Map.copyOf(r));
+        });
+    }
+
+    /**
+     * 使应用的缓存失效
+     *
+     * @param appId 应用 ID
+     */
+    public void invalidate(@NonNull String appId) {
+        cache.invalidate(appId);
+    }
+
+    /**
+     * 使全部缓存失效
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+}
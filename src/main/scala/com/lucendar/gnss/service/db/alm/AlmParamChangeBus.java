@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * 报警参数变更通知通道，用于在多个节点间同步报警参数缓存。
+ * <p>
+ * 一个节点发布的变更通知，由所有订阅的节点（不包括发布者自身）接收。
+ */
+public interface AlmParamChangeBus extends AutoCloseable {
+
+    /**
+     * 表示所有应用的 appId。通道重连后，期间的通知可能已丢失，以此 appId 通知监听器全部报警参数都已变更
+     */
+    String ALL_APPS = "*";
+
+    /**
+     * 报警参数变更监听器
+     */
+    @FunctionalInterface
+    interface Listener {
+        /**
+         * 报警参数已变更
+         *
+         * @param appId 应用 ID
+         * @param typ   报警类型，为 null 时表示该应用的全部报警参数
+         */
+        void onAlmParamChanged(@NonNull String appId, @Nullable String typ);
+    }
+
+    /**
+     * 发布报警参数变更通知。本方法不抛出异常。
+     * <p>
+     * 在事务中调用时，通知在事务提交后才被其它节点接收，事务回滚时不发送通知。
+     *
+     * @param appId 应用 ID
+     * @param typ   报警类型，为 null 时表示该应用的全部报警参数
+     */
+    void publish(@NonNull String appId, @Nullable String typ);
+
+    /**
+     * 订阅报警参数变更通知。监听器在通道的接收线程中调用。
+     *
+     * @param listener 监听器
+     */
+    void subscribe(@NonNull Listener listener);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Wire format of the alarm parameter change notification: `nodeId \n appId \n typ`, an empty typ means all params of
+ * the app. The node id (one per bus instance) lets a bus skip the notifications published by itself.
+ */
+record AlmParamChangeMessage(@NonNull String nodeId, @NonNull String appId, @Nullable String typ) {
+
+    String encode() {
+        return nodeId + '\n' + appId + '\n' + (typ != null ? typ : "");
+    }
+
+    @Nullable
+    static AlmParamChangeMessage decode(@NonNull String s) {
+        int p1 = s.indexOf('\n');
+        int p2 = p1 >= 0 ? s.indexOf('\n', p1 + 1) : -1;
+        if (p2 < 0)
+            return null;
+
+        String typ = s.substring(p2 + 1);
+        return new AlmParamChangeMessage(s.substring(0, p1), s.substring(p1 + 1, p2), typ.isEmpty() ? null : typ);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.lucendar.gnss.sdk.alm.Alm;
+import com.lucendar.gnss.sdk.db.RecIdProvider;
+import com.lucendar.gnss.service.db.AsyncBatchWriter;
+import com.lucendar.gnss.service.db.BatchBisector;
+import com.lucendar.gnss.service.db.BatchWriterConfig;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 异步报警保存器。
+ * <p>
+ * `createAlm()` 立即为报警分配 ID（若尚未分配），然后将报警放入队列并返回，调用者可立即使用报警 ID。
+ * 报警按 simNo 分派到各写入线程，按批大小或时间间隔经 `AlmDao.saveAlms()`（COPY）写入数据库，
+ * 写入结果通过返回的 `CompletableFuture` 通知。同一终端的报警总是由同一个写入线程按提交顺序写入。
+ * <p>
+ * 设置了活动报警索引（见 `setActiveAlmRegistry()`）时，报警在分配 ID 后即登记到索引，调用者可立即按 ID 关闭报警；
+ * 报警未能写入（队列已满、写入失败或放入死信存储）时从索引中移除。
+ * <p>
+ * 指标（可选）：
+ * <ul>
+ *     <li>histogram: 每批写入耗时，单位：秒</li>
+ *     <li>successAlmCounter: 成功写入的报警数</li>
+ *     <li>failureAlmCounter: 写入失败的报警数</li>
+ *     <li>rejectedAlmCounter: 因队列已满而拒绝的报警数</li>
+ * </ul>
+ */
+public class AlmSaver extends AsyncBatchWriter<AlmSaver.Entry> {
+
+    record Entry(Alm alm, CompletableFuture<Alm> future) {
+    }
+
+    private final AlmDao almDao;
+    private final RecIdProvider almIdProvider;
+    private final AlmSaverMetrics metrics;
+    private volatile ActiveAlmRegistry activeAlmRegistry;
+
+    // per writer
+    private final Alm[][] buffers;
+
+    /**
+     * @param almDao        报警 DAO
+     * @param almIdProvider 报警 ID 生成器
+     * @param config        写入器配置
+     * @param metrics       指标，为 null 时不记录指标
+     */
+    public AlmSaver(@NonNull AlmDao almDao,
+                    @NonNull RecIdProvider almIdProvider,
+                    @NonNull BatchWriterConfig config,
+                    @Nullable AlmSaverMetrics metrics) {
+        super("alm-saver", config);
+        this.almDao = almDao;
+        this.almIdProvider = almIdProvider;
+        this.metrics = metrics;
+        this.buffers = new Alm[config.writerCount()][];
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new Alm[config.batchSize()];
+    }
+
+    /**
+     * 设置活动报警索引
+     *
+     * @param registry 活动报警索引，为 null 时不登记
+     */
+    public void setActiveAlmRegistry(@Nullable ActiveAlmRegistry registry) {
+        this.activeAlmRegistry = registry;
+    }
+
+    private void unregister(Alm alm) {
+        ActiveAlmRegistry registry = activeAlmRegistry;
+        if (registry != null)
+            registry.remove(alm);
+    }
+
+    /**
+     * 异步创建报警
+     *
+     * @param alm 报警。ID 为 null 时，本方法为其分配 ID
+     * @return 写入结果。写入成功时完成为 `alm`；队列已满时以 `RejectedExecutionException` 异常完成；
+     * 写入失败或报警被放入死信存储时以写入异常完成
+     */
+    public CompletableFuture<Alm> createAlm(@NonNull Alm alm) {
+        if (alm.getId() == null)
+            alm.setId(almIdProvider.nextId());
+
+        ActiveAlmRegistry registry = activeAlmRegistry;
+        if (registry != null)
+            registry.put(alm);
+
+        var future = new CompletableFuture<Alm>();
+        if (!submit(new Entry(alm, future))) {
+            if (metrics != null)
+                metrics.rejectedAlmCounter().inc();
+
+            unregister(alm);
+            future.completeExceptionally(new RejectedExecutionException("Alarm queue is full or closed."));
+        }
+
+        return future;
+    }
+
+    @Override
+    protected void onDropped(Entry entry) {
+        if (metrics != null)
+            metrics.rejectedAlmCounter().inc();
+
+        unregister(entry.alm());
+        entry.future().completeExceptionally(new RejectedExecutionException("Alarm dropped because queue is full."));
+    }
+
+    @Override
+    protected int shardOf(Entry entry) {
+        String simNo = entry.alm().getSimNo();
+        return simNo != null ? simNo.hashCode() : 0;
+    }
+
+    @Override
+    protected void flush(int shard, @NonNull List<Entry> batch) {
+        final int count = batch.size();
+        Alm[] alms = buffers[shard];
+        if (alms.length < count)
+            alms = new Alm[count];
+        for (int i = 0; i < count; i++)
+            alms[i] = batch.get(i).alm();
+
+        long start = System.nanoTime();
+        BatchBisector.Result<Alm> r;
+        try {
+            r = almDao.saveAlms(alms, count);
+        } catch (Throwable t) {
+            r = BatchBisector.Result.failure(alms, count, t);
+        } finally {
+            for (int i = 0; i < count; i++)
+                alms[i] = null;
+        }
+
+        // rows of a partially failed batch may have been committed, complete each future by its own outcome
+        var failures = new IdentityHashMap<Alm, Throwable>();
+        for (Alm alm : r.getUnwritten())
+            failures.put(alm, r.getError());
+        for (int i = 0; i < r.getDeadLetters().size(); i++)
+            failures.put(r.getDeadLetters().get(i), r.getDeadLetterErrors().get(i));
+
+        if (metrics != null) {
+            metrics.histogram().observe((System.nanoTime() - start) / 1e9);
+            metrics.successAlmCounter().inc(count - failures.size());
+            if (!failures.isEmpty())
+                metrics.failureAlmCounter().inc(failures.size());
+        }
+
+        for (Entry e : batch) {
+            Throwable error = failures.get(e.alm());
+            if (error == null)
+                e.future().complete(e.alm());
+            else {
+                unregister(e.alm());
+                e.future().completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm
+
+import io.prometheus.metrics.core.metrics.{Counter, Histogram}
+
+/**
+ * `AlmSaver` 的指标
+ *
+ * @param histogram          每批写入耗时，单位：秒
+ * @param successAlmCounter  成功写入的报警数
+ * @param failureAlmCounter  写入失败的报警数
+ * @param rejectedAlmCounter 因队列已满而拒绝的报警数
+ */
+case class AlmSaverMetrics(
+                            histogram         : Histogram,
+                            successAlmCounter : Counter,
+                            failureAlmCounter : Counter,
+                            rejectedAlmCounter: Counter
+                          )
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import de.bytefish.pgbulkinsert.util.PostgreSqlUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 基于 PostgreSQL LISTEN/NOTIFY 的报警参数变更通知通道。
+ * <p>
+ * 接收线程以 `DriverManager` 建立一个不属于连接池的专用连接执行 LISTEN，连接断开时自动重连。重连期间发布的通知会丢失，
+ * 因此重连后通知监听器全部报警参数都已变更（appId 为 {@link #ALL_APPS}）。
+ * <p>
+ * 通知经数据源的当前连接（参与 Spring 管理的事务）以 `pg_notify()` 发送，PostgreSQL 在事务提交时才投递通知。
+ */
+public class PgAlmParamChangeBus implements AlmParamChangeBus {
+
+    public static final String DEFAULT_CHANNEL = "gnss_alm_param_changed";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.pgAlmParamChangeBus");
+
+    private static final int POLL_TIMEOUT_MILLIS = 1000;
+    private static final long RECONNECT_DELAY_MILLIS = 5000;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final DataSource ds;
+    private final String jdbcUrl;
+    private final Properties connProps;
+    private final String channel;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param ds        数据源，用于发送通知
+     * @param jdbcUrl   LISTEN 专用连接的 JDBC URL
+     * @param connProps LISTEN 专用连接的属性（user、password 等）
+     * @param channel   通道名称，必须是合法的 PostgreSQL 标识符
+     */
+    public PgAlmParamChangeBus(@NonNull DataSource ds,
+                               @NonNull String jdbcUrl,
+                               @NonNull Properties connProps,
+                               @NonNull String channel) {
+        if (!channel.matches("[a-z_][a-z0-9_]*"))
+            throw new IllegalArgumentException("Invalid channel: " + channel + ".");
+
+        this.ds = ds;
+        this.jdbcUrl = jdbcUrl;
+        this.connProps = connProps;
+        this.channel = channel;
+        this.thread = new Thread(this::listen, "alm-param-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public PgAlmParamChangeBus(@NonNull DataSource ds, @NonNull String jdbcUrl, @NonNull Properties connProps) {
+        this(ds, jdbcUrl, connProps, DEFAULT_CHANNEL);
+    }
+
+    private void listen() {
+        boolean reconnect = false;
+        while (!closed) {
+            try (Connection conn = DriverManager.getConnection(jdbcUrl, connProps)) {
+                conn.setAutoCommit(true);
+
+                try (Statement st = conn.createStatement()) {
+                    st.execute("LISTEN " + channel);
+                }
+
+                if (reconnect)
+                    notifyListeners(ALL_APPS, null);
+
+                PGConnection pg = PostgreSqlUtils.getPGConnection(conn);
+                while (!closed) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT_MILLIS);
+                    if (notifications != null) {
+                        for (PGNotification n : notifications)
+                            dispatch(n.getParameter());
+                    }
+                }
+            } catch (Throwable t) {
+                if (closed)
+                    return;
+
+                LOGGER.error("Error occurred when listen alarm parameter change, will reconnect.", t);
+                reconnect = true;
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void dispatch(String s) {
+        var msg = AlmParamChangeMessage.decode(s);
+        if (msg == null) {
+            LOGGER.warn("Invalid alarm parameter change message: {}", s);
+            return;
+        }
+
+        if (!nodeId.equals(msg.nodeId()))
+            notifyListeners(msg.appId(), msg.typ());
+    }
+
+    private void notifyListeners(String appId, String typ) {
+        listeners.forEach(l -> {
+            try {
+                l.onAlmParamChanged(appId, typ);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred when notify alarm parameter change.", t);
+            }
+        });
+    }
+
+    @Override
+    public void publish(@NonNull String appId, @Nullable String typ) {
+        // NOTIFY on the transactional connection, the notification is delivered when the transaction commits
+        Connection conn = DataSourceUtils.getConnection(ds);
+        try {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT pg_notify(?, ?)")) {
+                ps.setString(1, channel);
+                ps.setString(2, new AlmParamChangeMessage(nodeId, appId, typ).encode());
+                ps.execute();
+            }
+
+            if (!conn.getAutoCommit() && !DataSourceUtils.isConnectionTransactional(conn, ds))
+                conn.commit();
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred when publish alarm parameter change.", t);
+        } finally {
+            DataSourceUtils.releaseConnection(conn, ds);
+        }
+    }
+
+    @Override
+    public void subscribe(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.alm;
+
+import com.lucendar.gnss.service.memdb.RedisMemDb;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.SubscriptionListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 基于 Redis 发布/订阅的报警参数变更通知通道。
+ * <p>
+ * 在 Spring 管理的事务中发布的通知，在事务提交后才发送。订阅连接断开期间发布的通知会丢失，
+ * 因此重新订阅后通知监听器全部报警参数都已变更（appId 为 {@link #ALL_APPS}）。
+ */
+public class RedisAlmParamChangeBus implements AlmParamChangeBus {
+
+    public static final String DEFAULT_CHANNEL = "gnss:alm_param_changed";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.redisAlmParamChangeBus");
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final StringRedisTemplate redisTemplate;
+    private final String channel;
+    private final RedisMessageListenerContainer container;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param redisTemplate Redis 模板
+     * @param channel       通道名称
+     */
+    public RedisAlmParamChangeBus(@NonNull StringRedisTemplate redisTemplate, @NonNull String channel) {
+        this.redisTemplate = redisTemplate;
+        this.channel = channel;
+
+        RedisConnectionFactory factory = Objects.requireNonNull(redisTemplate.getConnectionFactory());
+        this.container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        container.addMessageListener(new ChangeMessageListener(), new ChannelTopic(channel));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    public RedisAlmParamChangeBus(@NonNull RedisMemDb memDb) {
+        this(memDb.getRedisTemplate(), DEFAULT_CHANNEL);
+    }
+
+    private class ChangeMessageListener implements MessageListener, SubscriptionListener {
+
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        @Override
+        public void onMessage(@NonNull Message message, byte[] pattern) {
+            dispatch(new String(message.getBody(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void onChannelSubscribed(byte[] channel, long count) {
+            // subscribed again after the connection was lost, notifications in between may be missed
+            if (!subscribed.compareAndSet(false, true))
+                notifyListeners(ALL_APPS, null);
+        }
+    }
+
+    private void dispatch(String s) {
+        var msg = AlmParamChangeMessage.decode(s);
+        if (msg == null) {
+            LOGGER.warn("Invalid alarm parameter change message: {}", s);
+            return;
+        }
+
+        if (!nodeId.equals(msg.nodeId()))
+            notifyListeners(msg.appId(), msg.typ());
+    }
+
+    private void notifyListeners(String appId, String typ) {
+        listeners.forEach(l -> {
+            try {
+                l.onAlmParamChanged(appId, typ);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred when notify alarm parameter change.", t);
+            }
+        });
+    }
+
+    @Override
+    public void publish(@NonNull String appId, @Nullable String typ) {
+        String msg = new AlmParamChangeMessage(nodeId, appId, typ).encode();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    send(msg);
+                }
+            });
+        } else
+            send(msg);
+    }
+
+    private void send(String msg) {
+        try {
+            redisTemplate.convertAndSend(channel, msg);
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred when publish alarm parameter change.", t);
+        }
+    }
+
+    @Override
+    public void subscribe(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void close() {
+        try {
+            container.destroy();
+        } catch (Exception e) {
+            LOGGER.warn("Error occurred when close redis message listener container.", e);
+        }
+    }
+}
@@ -6,8 +6,18 @@ import com.lucendar.common.db.types.SqlDialect
 import com.lucendar.gnss.service.db.job.PartitionMaintainJob.LOGGER
 import com.typesafe.scalalogging.Logger
 
+import java.util.concurrent.CopyOnWriteArrayList
+
 class PartitionMaintainJob(val jdbcCtx: JdbcContext, val sqlDialect: SqlDialect) extends DbSupport {
 
+  private final val listeners = new CopyOnWriteArrayList[PartitionMaintainListener]()
+
+  def addListener(listener: PartitionMaintainListener): Unit =
+    listeners.add(listener)
+
+  def removeListener(listener: PartitionMaintainListener): Unit =
+    listeners.remove(listener)
+
   private def safeExec(sql: String): Unit = {
     try {
       execute(sql)
@@ -24,7 +34,32 @@ class PartitionMaintainJob(val jdbcCtx: JdbcContext, val sqlDialect: SqlDialect)
    */
   def exec(): Unit = {
     safeExec("SELECT p_create_partitions()")
-    safeExec("SELECT p_delete_old_parts()")
+
+    var deleteOldParts = true
+    listeners.forEach(l => {
+      try {
+        if (!l.beforeDeleteOldParts())
+          deleteOldParts = false
+      } catch {
+        case t: Throwable =>
+          deleteOldParts = false
+          LOGGER.error("Error occurred when notify partition maintain listener.", t)
+      }
+    })
+
+    if (deleteOldParts)
+      safeExec("SELECT p_delete_old_parts()")
+    else
+      LOGGER.warn("Deleting old partitions is postponed by listener.")
+
+    listeners.forEach(l => {
+      try {
+        l.onPartitionsMaintained()
+      } catch {
+        case t: Throwable =>
+          LOGGER.error("Error occurred when notify partition maintain listener.", t)
+      }
+    })
   }
 
 
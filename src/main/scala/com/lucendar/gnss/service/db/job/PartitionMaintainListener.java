@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.job;
+
+/**
+ * 分区维护监听器，由 `PartitionMaintainJob` 在维护完成后调用
+ */
+public interface PartitionMaintainListener {
+
+    /**
+     * 即将删除过期分区。本方法不应抛出异常。
+     *
+     * @return 是否允许删除过期分区。返回 false 时本次维护不删除分区，待下次维护时再删除
+     */
+    default boolean beforeDeleteOldParts() {
+        return true;
+    }
+
+    /**
+     * 分区维护（创建新分区、删除旧分区）已完成。本方法不应抛出异常。
+     */
+    void onPartitionsMaintained();
+}
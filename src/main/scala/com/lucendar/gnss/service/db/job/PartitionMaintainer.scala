@@ -15,13 +15,16 @@ import org.springframework.scheduling.support.{CronExpression, CronTrigger}
  * @param sqlDialect
  * @param scheduler
  * @param cronExpression
+ * @param listeners      listeners notified after each execution
  */
 class PartitionMaintainer(jdbcCtx       : JdbcContext,
                           sqlDialect    : SqlDialect,
                           scheduler     : TaskScheduler,
-                          cronExpression: String) extends Actor with Timers {
+                          cronExpression: String,
+                          listeners     : Seq[PartitionMaintainListener]) extends Actor with Timers {
 
   private final val job = new PartitionMaintainJob(jdbcCtx, sqlDialect)
+  listeners.foreach(job.addListener)
 
   override def preStart(): Unit = {
     scheduler.schedule(new Runnable {
@@ -49,5 +52,16 @@ object PartitionMaintainer {
             sqlDialect: SqlDialect,
             scheduler: TaskScheduler,
             cronExpression: String): Props =
-    Props(new PartitionMaintainer(jdbcCtx, sqlDialect, scheduler, cronExpression))
+    Props(new PartitionMaintainer(jdbcCtx, sqlDialect, scheduler, cronExpression, Seq.empty))
+
+  def props(jdbcCtx: JdbcContext,
+            sqlDialect: SqlDialect,
+            scheduler: TaskScheduler,
+            cronExpression: String,
+            listeners: java.util.List[PartitionMaintainListener]): Props = {
+    import scala.jdk.CollectionConverters._
+
+    val seq = listeners.asScala.toSeq
+    Props(new PartitionMaintainer(jdbcCtx, sqlDialect, scheduler, cronExpression, seq))
+  }
 }
\ No newline at end of file
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 实时轨迹合并器。每个终端只保留 `gpsTm` 最新的一条待保存轨迹，并丢弃比已保存轨迹更旧的补传轨迹。
+ * <p>
+ * 实时轨迹表 `t_latest_trk` 以 `f_sim_no` 为主键，同一批 `INSERT ... ON CONFLICT DO UPDATE` 中若有两条相同
+ * `f_sim_no` 的记录，整批都会失败，因此写入前必须合并。
+ * <p>
+ * `gpsTm` 为 null 的轨迹视为比任何有 `gpsTm` 的轨迹更旧，不参与补传轨迹的过滤。
+ * 已保存轨迹时间最多记录 `maxSaved` 个终端，超出时淘汰最久未使用的终端（其补传轨迹不再被过滤）。
+ * <p>
+ * 本类不是线程安全的。
+ */
+public class LatestTrkCoalescer {
+
+    private static final class SavedTm {
+        long gpsTm;
+
+        SavedTm(long gpsTm) {
+            this.gpsTm = gpsTm;
+        }
+    }
+
+    /**
+     * 默认的已保存轨迹时间的最大终端数
+     */
+    public static final int DEFAULT_MAX_SAVED = 100_000;
+
+    private final LinkedHashMap<String, Trk> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<String, SavedTm> saved;
+
+    /**
+     * @param maxSaved 已保存轨迹时间的最大终端数
+     */
+    public LatestTrkCoalescer(int maxSaved) {
+        if (maxSaved <= 0)
+            throw new IllegalArgumentException("maxSaved");
+
+        this.saved = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SavedTm> eldest) {
+                return size() > maxSaved;
+            }
+        };
+    }
+
+    public LatestTrkCoalescer() {
+        this(DEFAULT_MAX_SAVED);
+    }
+
+    // a trk without gpsTm is older than any trk with one
+    private static boolean newerOrEqual(Trk trk, Trk than) {
+        Long tm = trk.getGpsTm();
+        Long thanTm = than.getGpsTm();
+        if (tm == null)
+            return thanTm == null;
+        return thanTm == null || tm >= thanTm;
+    }
+
+    /**
+     * 加入一条轨迹
+     *
+     * @param trk 轨迹
+     * @return 是否被接受。为 false 时表示该轨迹比同终端待保存或已保存的轨迹更旧而被丢弃。
+     */
+    public boolean add(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+
+        Long gpsTm = trk.getGpsTm();
+        if (trk.isReTrans() && gpsTm != null) {
+            SavedTm s = saved.get(simNo);
+            if (s != null && gpsTm < s.gpsTm)
+                return false;
+        }
+
+        Trk existing = pending.get(simNo);
+        if (existing != null && !newerOrEqual(trk, existing))
+            return false;
+
+        pending.put(simNo, trk);
+        return true;
+    }
+
+    /**
+     * 待保存的轨迹数量，即待保存的终端数
+     *
+     * @return 待保存的轨迹数量
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 将待保存的轨迹取出到 `dest` 中，并清空待保存列表
+     *
+     * @param dest 目标数组，长度必须不小于 `pendingCount()`
+     * @return 取出的轨迹数量
+     */
+    public int drainTo(@NonNull Trk[] dest) {
+        int i = 0;
+        for (Trk trk : pending.values())
+            dest[i++] = trk;
+
+        pending.clear();
+        return i;
+    }
+
+    /**
+     * 将已取出但保存失败的轨迹放回，与此后加入的轨迹一起合并
+     *
+     * @param trks  轨迹数组
+     * @param count 轨迹数量
+     */
+    public void restore(@NonNull Trk[] trks, int count) {
+        for (int i = 0; i < count; i++) {
+            Trk trk = trks[i];
+            Trk existing = pending.get(trk.getSimNo());
+            if (existing == null || !newerOrEqual(existing, trk))
+                pending.put(trk.getSimNo(), trk);
+        }
+    }
+
+    /**
+     * 记录已成功保存的轨迹时间，用于丢弃此后到达的更旧的补传轨迹
+     *
+     * @param trks  轨迹数组
+     * @param count 轨迹数量
+     */
+    public void markSaved(@NonNull Trk[] trks, int count) {
+        for (int i = 0; i < count; i++) {
+            Trk trk = trks[i];
+            Long gpsTm = trk.getGpsTm();
+            if (gpsTm == null)
+                continue;
+
+            SavedTm s = saved.get(trk.getSimNo());
+            if (s == null)
+                saved.put(trk.getSimNo(), new SavedTm(gpsTm));
+            else if (gpsTm > s.gpsTm)
+                s.gpsTm = gpsTm;
+        }
+    }
+
+    /**
+     * 合并一批轨迹，每个终端只保留 `gpsTm` 最新的一条。
+     *
+     * @param trks  轨迹数组
+     * @param count 轨迹数量
+     * @param dest  目标数组，长度必须不小于 `count`，可以与 `trks` 相同
+     * @return 合并后的轨迹数量
+     */
+    public static int coalesce(@NonNull Trk[] trks, int count, @NonNull Trk[] dest) {
+        Map<String, Integer> indexes = new HashMap<>(count * 2);
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            Trk trk = trks[i];
+            Integer idx = indexes.putIfAbsent(trk.getSimNo(), n);
+            if (idx == null)
+                dest[n++] = trk;
+            else if (newerOrEqual(trk, dest[idx]))
+                dest[idx] = trk;
+        }
+
+        return n;
+    }
+}
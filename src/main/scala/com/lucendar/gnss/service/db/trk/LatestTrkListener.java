@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+
+/**
+ * 实时轨迹保存监听器。由 `TrkDao_Pg.addLatestTrkListener()` 注册。
+ */
+public interface LatestTrkListener {
+
+    /**
+     * 实时轨迹已保存。本方法在保存轨迹的线程中调用，不应阻塞。
+     *
+     * @param trks  已保存的轨迹数组，每个终端至多一条。调用返回后数组可能被复用，不应保留其引用
+     * @param count 轨迹数量
+     */
+    void onLatestTrksSaved(Trk[] trks, int count);
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+/**
+ * 实时轨迹的写入方式
+ */
+public enum LatestTrkWriteMode {
+
+    /**
+     * 使用多行 `INSERT ... VALUES ... ON CONFLICT DO UPDATE` 语句写入。适用于小批量。
+     */
+    UPSERT,
+
+    /**
+     * 先以二进制 COPY 写入临时表，再以一条 `INSERT ... SELECT ... ON CONFLICT DO UPDATE` 语句合并到 `t_latest_trk`。
+     * 不受绑定参数数量限制，适用于大批量。
+     */
+    COPY_MERGE
+}
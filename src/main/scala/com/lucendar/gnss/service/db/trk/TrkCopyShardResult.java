@@ -0,0 +1,22 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * 并行 COPY 历史轨迹时，单个分片的执行结果
+ *
+ * @param shard  分片序号，从 0 开始
+ * @param count  分片中的轨迹数量
+ * @param failed 未能保存的轨迹数量（已转存或放入死信存储的轨迹也计入）
+ * @param error  失败原因，成功时为 null
+ */
+public record TrkCopyShardResult(int shard, int count, int failed, @Nullable Throwable error) {
+
+    public boolean success() {
+        return error == null;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 历史轨迹游标。
+ * <p>
+ * 基于数据库服务端游标逐批读取轨迹，每次只在内存中保留一批（`fetchSize` 条）记录。游标独占一个数据库连接，
+ * 使用完毕后必须调用 `close()`。
+ * <p>
+ * 本类不是线程安全的。
+ */
+public class TrkCursor implements Iterator<Trk>, AutoCloseable {
+
+    /**
+     * 将结果集的当前行转换为轨迹
+     */
+    @FunctionalInterface
+    public interface RowMapper {
+        Trk map(ResultSet rs) throws SQLException;
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.trkCursor");
+
+    private final Connection conn;
+    private final PreparedStatement ps;
+    private final ResultSet rs;
+    private final RowMapper mapper;
+    private final boolean restoreAutoCommit;
+
+    private Boolean hasNext;
+    private boolean closed;
+
+    /**
+     * @param conn              游标独占的连接，关闭游标时一并关闭
+     * @param ps                查询语句
+     * @param rs                结果集
+     * @param mapper            行转换器
+     * @param restoreAutoCommit 关闭时是否将连接恢复为自动提交
+     */
+    public TrkCursor(@NonNull Connection conn,
+                     @NonNull PreparedStatement ps,
+                     @NonNull ResultSet rs,
+                     @NonNull RowMapper mapper,
+                     boolean restoreAutoCommit) {
+        this.conn = conn;
+        this.ps = ps;
+        this.rs = rs;
+        this.mapper = mapper;
+        this.restoreAutoCommit = restoreAutoCommit;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed)
+            return false;
+
+        if (hasNext == null) {
+            try {
+                hasNext = rs.next();
+            } catch (SQLException e) {
+                close();
+                throw new RuntimeException(e);
+            }
+
+            if (!hasNext)
+                close();
+        }
+
+        return hasNext;
+    }
+
+    @Override
+    public Trk next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        hasNext = null;
+        try {
+            return mapper.map(rs);
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            rs.close();
+            ps.close();
+
+            // the cursor is read only, end its transaction
+            conn.rollback();
+            if (restoreAutoCommit)
+                conn.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.warn("Error occurred when close trk cursor.", e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Error occurred when close connection of trk cursor.", e);
+            }
+        }
+    }
+}
@@ -5,6 +5,9 @@
 package com.lucendar.gnss.service.db.trk;
 
 import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.Flow;
 
 public interface TrkDao {
 
@@ -24,4 +27,53 @@ public interface TrkDao {
      * @param count 轨迹数量
      */
     void bulkSaveHisTrks(Trk[] trks, int count);
+
+    /**
+     * 批量保存历史轨迹，返回未能保存的轨迹数。
+     * <p>
+     * 默认实现调用 `bulkSaveHisTrks()` 并返回 0，保存失败时抛出其异常。
+     *
+     * @param trks  轨迹数组
+     * @param count 轨迹数量
+     * @return 未能保存的轨迹数。已转存待重放或放入死信存储的轨迹也计为未能保存
+     */
+    default int saveHisTrks(Trk[] trks, int count) {
+        bulkSaveHisTrks(trks, count);
+        return 0;
+    }
+
+    /**
+     * 打开指定终端在指定时间范围内的历史轨迹游标，轨迹按定位时间升序排列。
+     * <p>
+     * 游标基于数据库服务端游标，每次只读取 `fetchSize` 条记录，内存占用与时间范围无关。游标独占一个数据库连接，
+     * 使用完毕后必须关闭。
+     *
+     * @param simNo     终端识别号
+     * @param beginTime 开始时间（含），epoch millis
+     * @param endTime   结束时间（不含），epoch millis
+     * @param fetchSize 每批读取的记录数
+     * @return 历史轨迹游标
+     */
+    TrkCursor openHisTrkCursor(@NonNull String simNo, long beginTime, long endTime, int fetchSize);
+
+    /**
+     * 以 `Flow.Publisher` 的形式查询指定终端在指定时间范围内的历史轨迹，轨迹按定位时间升序排列。
+     * <p>
+     * 每个订阅者使用独立的游标，按订阅者的请求量读取。
+     *
+     * @param simNo     终端识别号
+     * @param beginTime 开始时间（含），epoch millis
+     * @param endTime   结束时间（不含），epoch millis
+     * @param fetchSize 每批读取的记录数
+     * @return 历史轨迹发布者
+     */
+    Flow.Publisher<Trk> hisTrkPublisher(@NonNull String simNo, long beginTime, long endTime, int fetchSize);
+
+    /**
+     * 打开全部实时轨迹的游标。
+     *
+     * @param fetchSize 每批读取的记录数
+     * @return 实时轨迹游标
+     */
+    TrkCursor openLatestTrkCursor(int fetchSize);
 }
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import com.lucendar.gnss.service.db.DeadLetterStore
+import info.gratour.jt808common.protocol.msg.types.trk.Trk
+import org.checkerframework.checker.nullness.qual.{NonNull, Nullable}
+
+/**
+ * `TrkDao_Pg` 的构造选项
+ *
+ * @param latestTrkWriteMode 实时轨迹的写入方式
+ * @param hisCopyShards      历史轨迹并行 COPY 的分片数。大于 1 时，较大的批次按 `f_sim_no` 分片后使用多个连接并行写入
+ * @param spillJournal       历史轨迹转存日志。不为 null 时，保存失败的历史轨迹写入该日志，待数据库恢复后重放
+ * @param partitionMap       `t_trk` 分区边界表。不为 null 时，历史轨迹直接 COPY 到其所在的子分区
+ * @param dedupFilter        补传轨迹去重过滤器。不为 null 时，COPY 前丢弃可能已保存的补传轨迹
+ * @param deadLetterStore    历史轨迹死信存储。不为 null 时，因数据错误 COPY 失败的批次被二分重试，出错的轨迹放入该存储，
+ *                           其余轨迹正常保存
+ */
+case class TrkDaoPgOptions(
+                            latestTrkWriteMode: LatestTrkWriteMode = LatestTrkWriteMode.UPSERT,
+                            hisCopyShards     : Int = 1,
+                            @Nullable spillJournal: TrkSpillJournal = null,
+                            @Nullable partitionMap: TrkPartitionMap = null,
+                            @Nullable dedupFilter: TrkDedupFilter = null,
+                            @Nullable deadLetterStore: DeadLetterStore[Trk] = null
+                          ) {
+  require(hisCopyShards >= 1, "hisCopyShards")
+
+  def withLatestTrkWriteMode(@NonNull mode: LatestTrkWriteMode): TrkDaoPgOptions =
+    copy(latestTrkWriteMode = mode)
+
+  def withHisCopyShards(shards: Int): TrkDaoPgOptions =
+    copy(hisCopyShards = shards)
+
+  def withSpillJournal(@Nullable journal: TrkSpillJournal): TrkDaoPgOptions =
+    copy(spillJournal = journal)
+
+  def withPartitionMap(@Nullable map: TrkPartitionMap): TrkDaoPgOptions =
+    copy(partitionMap = map)
+
+  def withDedupFilter(@Nullable filter: TrkDedupFilter): TrkDaoPgOptions =
+    copy(dedupFilter = filter)
+
+  def withDeadLetterStore(@Nullable store: DeadLetterStore[Trk]): TrkDaoPgOptions =
+    copy(deadLetterStore = store)
+}
+
+object TrkDaoPgOptions {
+  final val Default: TrkDaoPgOptions = TrkDaoPgOptions()
+}
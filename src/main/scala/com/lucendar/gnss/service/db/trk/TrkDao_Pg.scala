@@ -6,20 +6,30 @@ package com.lucendar.gnss.service.db.trk
 
 import com.google.gson.Gson
 import com.lucendar.common.db.types.{ServerVer, SqlDialect}
+import com.lucendar.common.utils.DateTimeUtils
 import com.lucendar.gnss.service.db.trk.TrkDao_Pg.LOGGER
-import com.lucendar.gnss.service.db.{AbstractJdbcDao, RowAccessor}
+import com.lucendar.gnss.service.db.{AbstractJdbcDao, BatchBisector, DeadLetterStore, PgBinaryCopyWriter}
 import com.typesafe.scalalogging.Logger
-import de.bytefish.pgbulkinsert.row.{SimpleRow, SimpleRowWriter}
 import de.bytefish.pgbulkinsert.util.PostgreSqlUtils
 import info.gratour.jt808common.protocol.msg.types.trk.Trk
 import org.checkerframework.checker.nullness.qual.NonNull
 import org.springframework.transaction.annotation.Transactional
 
+import java.sql.{Connection, PreparedStatement, ResultSet, Types}
+import java.time.{Instant, OffsetDateTime}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{CompletableFuture, ConcurrentHashMap, CopyOnWriteArrayList, Executor, ExecutorService, Executors, Flow}
 import javax.sql.DataSource
 import scala.util.Using
 
-class TrkDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNull gson: Gson)
-  extends AbstractJdbcDao(ds, sqlDialect) with TrkDao {
+class TrkDao_Pg(@NonNull ds: DataSource,
+                @NonNull sqlDialect: SqlDialect,
+                @NonNull gson: Gson,
+                @NonNull options: TrkDaoPgOptions)
+  extends AbstractJdbcDao(ds, sqlDialect) with TrkDao with AutoCloseable {
+
+  def this(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNull gson: Gson) =
+    this(ds, sqlDialect, gson, TrkDaoPgOptions.Default)
 
   private final val serverVer: ServerVer = sqlDialect.getServerVer(ds)
   private final val pg15OrNewer = ServerVer(15, 0).compare(serverVer) >= 0
@@ -60,10 +70,70 @@ class TrkDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNu
 
 
 
-  private final val table: SimpleRowWriter.Table = new SimpleRowWriter.Table(
+  private final val table: PgBinaryCopyWriter.Table = new PgBinaryCopyWriter.Table(
     "t_trk", fields: _*
   )
 
+  // partition name -> COPY target
+  private final val partitionTables = new ConcurrentHashMap[String, PgBinaryCopyWriter.Table]()
+
+  private final val stagingTable: PgBinaryCopyWriter.Table = new PgBinaryCopyWriter.Table(
+    "tmp_latest_trk", fields: _*
+  )
+
+  private final val latestTrkListeners = new CopyOnWriteArrayList[LatestTrkListener]()
+
+  def addLatestTrkListener(@NonNull listener: LatestTrkListener): Unit =
+    latestTrkListeners.add(listener)
+
+  def removeLatestTrkListener(@NonNull listener: LatestTrkListener): Unit =
+    latestTrkListeners.remove(listener)
+
+  private def notifyLatestTrksSaved(trks: Array[Trk], count: Int): Unit =
+    latestTrkListeners.forEach(l => {
+      try {
+        l.onLatestTrksSaved(trks, count)
+      } catch {
+        case t: Throwable =>
+          LOGGER.error("Error occurred when notify latest trks saved.", t)
+      }
+    })
+
+  private final val hisTrkListeners = new CopyOnWriteArrayList[HisTrkListener]()
+
+  def addHisTrkListener(@NonNull listener: HisTrkListener): Unit =
+    hisTrkListeners.add(listener)
+
+  def removeHisTrkListener(@NonNull listener: HisTrkListener): Unit =
+    hisTrkListeners.remove(listener)
+
+  private def notifyHisTrksSaved(trks: Array[Trk], count: Int): Unit =
+    hisTrkListeners.forEach(l => {
+      try {
+        l.onHisTrksSaved(trks, count)
+      } catch {
+        case t: Throwable =>
+          LOGGER.error("Error occurred when notify history trks saved.", t)
+      }
+    })
+
+  if (options.dedupFilter != null)
+    addHisTrkListener(options.dedupFilter)
+
+  private final val createStagingTableSql =
+    "CREATE TEMP TABLE IF NOT EXISTS tmp_latest_trk (LIKE t_latest_trk INCLUDING DEFAULTS) ON COMMIT DELETE ROWS"
+
+  // DISTINCT ON guards against duplicated f_sim_no, ORDER BY makes concurrent mergers lock rows in the same order.
+  private final val mergeStagingTableSql =
+    s"""
+    INSERT INTO t_latest_trk ($fieldsStr)
+    SELECT DISTINCT ON (f_sim_no) $fieldsStr
+    FROM tmp_latest_trk
+    ORDER BY f_sim_no, f_gps_tm DESC
+    ON CONFLICT (f_sim_no) DO UPDATE SET ($updateFieldsStr) = ($updateExcludedFieldsStr)
+    WHERE NOT excluded.f_retrans OR t_latest_trk.f_gps_tm <= excluded.f_gps_tm
+    """
+
   private def executeUpsert(sql: String, trks: Array[Trk], count: Int): Unit = {
     update(
       sql, binder => {
@@ -102,37 +172,91 @@ class TrkDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNu
   }
 
 
-  /**
-   *
-   * @param trks
-   * @param count
-   * @param params (?, ?, ?...)[, (?, ?, ?...)]
-   */
-  private def bulkSaveLatestTrksUseUpsert(trks: Array[Trk], count: Int, params: String): Unit = {
-//    val sql =
-//      s"""
-//    WITH vals ($virtualFieldsStr) AS (VALUES $params),
-//    upd (upd_sim_no) AS (
-//        UPDATE t_latest_trk ut SET
-//          ($updateFieldsStr)
-//          = ($virtualUpdateFieldsStr)
-//        FROM vals
-//        WHERE ut.f_sim_no = vals.sim_no
-//        RETURNING ut.f_sim_no
-//      )
-//    INSERT INTO t_latest_trk($fieldsStr)
-//      SELECT $virtualFieldsStr
-//      FROM vals LEFT JOIN upd ON upd.upd_sim_no = vals.sim_no
-//      WHERE upd_sim_no IS NULL
-//    """
-
-    val sql = s"""
+  // Fixed batch shapes of the upsert statement, in descending order. Every batch is split into chunks of these sizes,
+  // so only these few SQL texts are ever sent and the driver can reuse its per-connection server-side prepared
+  // statements instead of parsing a new statement for every distinct batch size.
+  private final val upsertChunkSizes: Array[Int] = Array(1024, 128, 16, 1)
+
+  // Retransmitted trk which is older than the stored one must not overwrite it.
+  private final val upsertSqls: Array[String] = upsertChunkSizes.map(size =>
+    s"""
     INSERT INTO t_latest_trk ($fieldsStr)
-    VALUES $params
+    VALUES ${Array.fill(size)(paramsPlaceHolders).mkString(",")}
     ON CONFLICT (f_sim_no) DO UPDATE SET ($updateFieldsStr) = ($updateExcludedFieldsStr)
+    WHERE NOT excluded.f_retrans OR t_latest_trk.f_gps_tm <= excluded.f_gps_tm
     """
+  )
 
-    executeUpsert(sql, trks, count)
+  private def setIntObj(ps: PreparedStatement, idx: Int, value: Integer): Unit =
+    if (value != null) ps.setInt(idx, value) else ps.setNull(idx, Types.INTEGER)
+
+  private def setFloatObj(ps: PreparedStatement, idx: Int, value: java.lang.Float): Unit =
+    if (value != null) ps.setFloat(idx, value) else ps.setNull(idx, Types.REAL)
+
+  private def setTsz(ps: PreparedStatement, idx: Int, epochMillis: java.lang.Long): Unit =
+    if (epochMillis != null)
+      ps.setObject(idx, OffsetDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), DateTimeUtils.ZONE_OFFSET_BEIJING))
+    else
+      ps.setNull(idx, Types.TIMESTAMP_WITH_TIMEZONE)
+
+  /**
+   * Bind the parameters of one trk.
+   *
+   * @return the next parameter index
+   */
+  private def bindUpsertParams(ps: PreparedStatement, start: Int, trk: Trk): Int = {
+    ps.setString(start, trk.getId)
+    ps.setString(start + 1, trk.getSimNo)
+    ps.setString(start + 2, trk.getVehId)
+    ps.setString(start + 3, trk.getPlateNo)
+    setIntObj(ps, start + 4, trk.getPlateColor)
+    setTsz(ps, start + 5, trk.getRecvTm)
+    setTsz(ps, start + 6, trk.getGpsTm)
+    ps.setBoolean(start + 7, trk.isReTrans)
+    ps.setInt(start + 8, trk.getAlm)
+    ps.setInt(start + 9, trk.getSt)
+    ps.setDouble(start + 10, trk.getLng)
+    ps.setDouble(start + 11, trk.getLat)
+    ps.setInt(start + 12, trk.getAlt)
+    ps.setFloat(start + 13, trk.getSpd)
+    setFloatObj(ps, start + 14, trk.getRecSpd)
+    ps.setInt(start + 15, trk.getDir)
+    setIntObj(ps, start + 16, trk.getSignal)
+    setIntObj(ps, start + 17, trk.getIoSt)
+    setIntObj(ps, start + 18, trk.getVidAlm)
+    setIntObj(ps, start + 19, trk.getAdasAlm)
+    setFloatObj(ps, start + 20, trk.getMile)
+    setFloatObj(ps, start + 21, trk.getGas)
+    ps.setString(start + 22, trk.getDrvName)
+    ps.setString(start + 23, trk.getDrvNo)
+    val s = if (trk.getAddt != null) gson.toJson(trk.getAddt) else null
+    ps.setString(start + 24, s)
+
+    start + fields.length
+  }
+
+  private def bulkSaveLatestTrksUseUpsert(trks: Array[Trk], count: Int): Unit = {
+    dbAction(conn => {
+      var offset = 0
+      for (bucket <- upsertChunkSizes.indices) {
+        val size = upsertChunkSizes(bucket)
+        val chunks = (count - offset) / size
+        if (chunks > 0) {
+          Using.resource(conn.prepareStatement(upsertSqls(bucket))) { ps =>
+            for (_ <- 0 until chunks) {
+              var idx = 1
+              for (i <- offset until offset + size)
+                idx = bindUpsertParams(ps, idx, trks(i))
+
+              ps.addBatch()
+              offset += size
+            }
+
+            ps.executeBatch()
+          }
+        }
+      }
+    })
   }
 
   // The pg version must be 15 or above
@@ -153,23 +277,249 @@ class TrkDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNu
     executeUpsert(sql, trks, count)
   }
 
+  private def writeTrkRow(w: PgBinaryCopyWriter, trk: Trk): Unit = {
+    w.startRow()
+    w.text(trk.getId) // f_id
+    w.text(trk.getSimNo) // f_sim_no
+    w.text(trk.getVehId) // f_veh_id
+    w.text(trk.getPlateNo) // f_plate_no
+    w.int2(trk.getPlateColor) // f_plate_clr
+    w.tsz(trk.getRecvTm) // f_recv_tm
+    w.tsz(trk.getGpsTm) // f_gps_tm
+    w.bool(trk.isReTrans) // f_retrans
+    w.int4(trk.getAlm) // f_alm
+    w.int4(trk.getSt) // f_st
+    w.float8(trk.getLng) // f_lng
+    w.float8(trk.getLat) // f_lat
+    w.int2(trk.getAlt) // f_alt
+    w.float4(trk.getSpd) // f_spd
+    w.float4(trk.getRecSpd) // f_rec_spd
+    w.int2(trk.getDir) // f_dir
+    w.int4(trk.getSignal) // f_signal
+    w.int2(trk.getIoSt) // f_io_st
+    w.int4(trk.getVidAlm) // f_vid_alm
+    w.int2(trk.getAdasAlm) // f_adas_alm
+    w.float4(trk.getMile) // f_mile
+    w.float4(trk.getGas) // f_gas
+    w.text(trk.getDrvName) // f_drv_name
+    w.text(trk.getDrvNo) // f_drv_no
+
+    val addt = trk.getAddt
+    w.text(if (addt != null) gson.toJson(addt) else null) // f_addt
+  }
+
   /**
-   * 批量保存实时轨迹
+   * COPY the trks into the temporary staging table, then merge them into `t_latest_trk` with one statement.
+   * The staging table is created per session and emptied on commit.
+   */
+  private def bulkSaveLatestTrksUseCopyMerge(trks: Array[Trk], count: Int): Unit = {
+    dbAction(conn => {
+      // join the caller's transaction if there is one
+      val ownTx = conn.getAutoCommit
+      if (ownTx) conn.setAutoCommit(false)
+
+      try {
+        Using.resource(conn.createStatement()) { st =>
+          st.execute(createStagingTableSql)
+        }
+
+        val pg = PostgreSqlUtils.getPGConnection(conn)
+        Using.resource(new PgBinaryCopyWriter(pg, stagingTable)) { writer =>
+          for (i <- 0 until count)
+            writeTrkRow(writer, trks(i))
+        }
+
+        Using.resource(conn.createStatement()) { st =>
+          st.executeUpdate(mergeStagingTableSql)
+          st.execute("TRUNCATE tmp_latest_trk")
+        }
+
+        if (ownTx) conn.commit()
+      } catch {
+        case t: Throwable =>
+          if (ownTx) conn.rollback()
+          throw t
+      } finally {
+        if (ownTx) conn.setAutoCommit(true)
+      }
+    })
+  }
+
+  /**
+   * 批量保存实时轨迹。保存成功后通知已注册的 `LatestTrkListener`。
    *
    * @param trks  轨迹数组
    * @param count 轨迹数量
    */
   @Transactional
   override def bulkSaveLatestTrks(trks: Array[Trk], count: Int): Unit = {
-    val params = (1 to count).map(_ => paramsPlaceHolders).mkString(",")
+    if (count == 0) return
 
+    // The ON CONFLICT DO UPDATE command cannot affect a row twice, so keep only the newest trk of each terminal.
+    val coalesced = new Array[Trk](count)
+    val n = LatestTrkCoalescer.coalesce(trks, count, coalesced)
+
+    if (options.latestTrkWriteMode == LatestTrkWriteMode.COPY_MERGE) {
+      bulkSaveLatestTrksUseCopyMerge(coalesced, n)
+    } else {
 //    if (pg15OrNewer) {
 //      bulkSaveLatestTrksUseMerge(trks, count, params)
 //    } else
 
-    // Note: The MERGE in postgresql may occurred key violation if there is a concurrent insert.
-    // So, we use INSERT ON CONFLICT statement even if the PG version is 15 or above
-    bulkSaveLatestTrksUseUpsert(trks, count, params)
+      // Note: The MERGE in postgresql may occurred key violation if there is a concurrent insert.
+      // So, we use INSERT ON CONFLICT statement even if the PG version is 15 or above
+      bulkSaveLatestTrksUseUpsert(coalesced, n)
+    }
+
+    notifyLatestTrksSaved(coalesced, n)
+  }
+
+  // executors created lazily, shut down by close()
+  private final val executors = new CopyOnWriteArrayList[ExecutorService]()
+
+  private lazy val hisCopyExecutor: ExecutorService = {
+    val seq = new AtomicInteger()
+    val executor = Executors.newFixedThreadPool(options.hisCopyShards, (r: Runnable) => {
+      val t = new Thread(r, "trk-his-copy-" + seq.incrementAndGet())
+      t.setDaemon(true)
+      t
+    })
+    executors.add(executor)
+    executor
+  }
+
+  /**
+   * 关闭历史轨迹并行 COPY 和查询使用的线程池。
+   */
+  override def close(): Unit =
+    executors.forEach(e => e.shutdown())
+
+  /**
+   * COPY the trks into `t_trk` through a dedicated connection. Unlike `bulkSaveHisTrks()`, failure is neither logged
+   * nor spilled.
+   * Registered `HisTrkListener`s are notified on success.
+   *
+   * @throws Exception if the COPY failed
+   */
+  def copyHisTrks(@NonNull trks: Array[Trk], count: Int): Unit = {
+    val partitionMap = options.partitionMap
+    if (partitionMap == null) {
+      Using.resource(ds.getConnection) { conn =>
+        val pg = PostgreSqlUtils.getPGConnection(conn)
+
+        Using.resource(new PgBinaryCopyWriter(pg, table)) { writer =>
+          for (i <- 0 until count)
+            writeTrkRow(writer, trks(i))
+        }
+      }
+
+      notifyHisTrksSaved(trks, count)
+      return
+    }
+
+    // Group the trks by the partition their gpsTm falls into, so PG does not have to route every row.
+    // Trks out of the cached partition ranges, or without gpsTm, go to the parent table.
+    val groups = new java.util.LinkedHashMap[PgBinaryCopyWriter.Table, java.util.ArrayList[Trk]]()
+    for (i <- 0 until count) {
+      val trk = trks(i)
+      val gpsTm = trk.getGpsTm
+      val partition = if (gpsTm != null) partitionMap.partitionOf(gpsTm) else null
+      val target = if (partition != null) partitionTableOf(partition) else table
+      groups.computeIfAbsent(target, _ => new java.util.ArrayList[Trk]()).add(trk)
+    }
+
+    Using.resource(ds.getConnection) { conn =>
+      val pg = PostgreSqlUtils.getPGConnection(conn)
+
+      // all or nothing
+      val ownTx = groups.size() > 1 && conn.getAutoCommit
+      if (ownTx) conn.setAutoCommit(false)
+
+      try {
+        groups.forEach((target, list) => {
+          Using.resource(new PgBinaryCopyWriter(pg, target)) { writer =>
+            list.forEach(trk => writeTrkRow(writer, trk))
+          }
+        })
+
+        if (ownTx) conn.commit()
+      } catch {
+        case t: Throwable =>
+          if (ownTx) conn.rollback()
+          throw t
+      } finally {
+        if (ownTx) conn.setAutoCommit(true)
+      }
+    }
+
+    notifyHisTrksSaved(trks, count)
+  }
+
+  /**
+   * COPY the trks replayed from the spill journal. A batch failed by bad data is bisected and retried, the offending
+   * trks go to `TrkDaoPgOptions.deadLetterStore` (or are logged if it's not configured), so one bad trk does not block
+   * the journal.
+   * If the save is stopped by other errors after part of the trks were written or dead-lettered, the rest are spilled
+   * again and the method returns normally, so the handled ones are not replayed twice.
+   *
+   * @throws Exception if no trk is written because of an error other than bad data, the caller should retry later
+   */
+  def replayHisTrks(@NonNull trks: Array[Trk], count: Int): Unit = {
+    val deadLetterStore = if (options.deadLetterStore != null) options.deadLetterStore else TrkDao_Pg.ReplayDeadLetterStore
+    val r = BatchBisector.execute(trks, count, (a: Array[Trk], n: Int) => copyHisTrks(a, n), deadLetterStore)
+    if (r.getDeadLettered > 0)
+      LOGGER.warn(s"${r.getDeadLettered} of $count replayed trks moved to dead letter store after ${r.getAttempts} attempts.")
+
+    if (!r.isSuccess) {
+      val unwritten = r.getUnwritten
+      if (unwritten.size() == count)
+        throw r.getError
+
+      spill(unwritten.toArray(new Array[Trk](unwritten.size())), unwritten.size())
+    }
+  }
+
+  private def partitionTableOf(partition: String): PgBinaryCopyWriter.Table =
+    partitionTables.computeIfAbsent(partition, p => new PgBinaryCopyWriter.Table(p, fields: _*))
+
+  /**
+   * 将历史轨迹按 `f_sim_no` 的 hash 值分为若干分片，每个分片使用独立的连接并行 COPY。
+   * 若配置了 `TrkDaoPgOptions.partitionMap`，分片内的轨迹再按目标分区分组。
+   *
+   * @param trks   轨迹数组
+   * @param count  轨迹数量
+   * @param shards 分片数量，1 到 `TrkDaoPgOptions.hisCopyShards`（并行 COPY 线程池的大小）
+   * @return 各分片的执行结果。不包括空分片。失败分片的轨迹已写入转存日志（若已配置）。
+   * @note The transaction of each shard is managed in this method's internal.
+   */
+  def bulkSaveHisTrksSharded(@NonNull trks: Array[Trk], count: Int, shards: Int): java.util.List[TrkCopyShardResult] = {
+    require(shards >= 1 && shards <= options.hisCopyShards,
+      s"shards must be in [1, ${options.hisCopyShards}] (TrkDaoPgOptions.hisCopyShards).")
+
+    val shardTrks = Array.fill(shards)(new java.util.ArrayList[Trk]())
+    for (i <- 0 until count) {
+      val trk = trks(i)
+      // copyHisTrks() groups each shard's trks by partition
+      val simNo = trk.getSimNo
+      val h = if (simNo != null) simNo.hashCode & 0x7FFFFFFF else 0
+      shardTrks(h % shards).add(trk)
+    }
+
+    val futures = new java.util.ArrayList[CompletableFuture[TrkCopyShardResult]](shards)
+    for (shard <- 0 until shards) {
+      val list = shardTrks(shard)
+      if (!list.isEmpty) {
+        val arr = list.toArray(new Array[Trk](list.size()))
+        futures.add(CompletableFuture.supplyAsync(() => {
+          val (failed, error) = copyOrSpill(arr, arr.length)
+          new TrkCopyShardResult(shard, arr.length, failed, error)
+        }, hisCopyExecutor))
+      }
+    }
+
+    val r = new java.util.ArrayList[TrkCopyShardResult](futures.size())
+    futures.forEach(f => r.add(f.join()))
+    r
   }
 
   /**
@@ -177,59 +527,251 @@ class TrkDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNu
    *
    * @param trks  轨迹数组
    * @param count 轨迹数量
-   * @note The transaction is managed in this method's internal.
+   * @note The transaction is managed in this method's internal. If the save failed, the trks are appended to
+   *       `TrkDaoPgOptions.spillJournal` if configured. If `TrkDaoPgOptions.deadLetterStore` is configured, trks
+   *       rejected for bad data are isolated there instead. If `TrkDaoPgOptions.dedupFilter` is configured, probably
+   *       saved retransmitted trks are dropped before COPY.
    */
-  override def bulkSaveHisTrks(trks: Array[Trk], count: Int): Unit = {
-    if (count == 0) return
-    Using(ds.getConnection) { conn => {
-      val pg = PostgreSqlUtils.getPGConnection(conn)
+  override def bulkSaveHisTrks(trks: Array[Trk], count: Int): Unit =
+    saveHisTrks(trks, count)
 
-      Using.resource(new SimpleRowWriter(table, pg)) { writer => {
-        for (i <- 0 until count) {
-          val trk = trks(i)
-          writer.startRow(
-            (r: SimpleRow) => {
-              val acc = new RowAccessor(r)
-              acc.str(trk.getId) // f_id
-              acc.str(trk.getSimNo) // f_sim_no
-              acc.str(trk.getVehId) // f_veh_id
-              acc.str(trk.getPlateNo) // f_plate_no
-              acc.int16(trk.getPlateColor) // f_plate_clr
-              acc.tsz(trk.getRecvTm) // f_recv_tm
-              acc.tsz(trk.getGpsTm) // f_gps_tm
-              acc.boo(trk.getReTrans) // f_retrans
-              acc.int32(trk.getAlm) // f_alm
-              acc.int32(trk.getSt) // f_st
-              acc.dbl(trk.getLng) // f_lng
-              acc.dbl(trk.getLat) // f_lat
-              acc.int16(trk.getAlt) // f_alt
-              acc.fld(trk.getSpd) // f_spd
-              acc.fld(trk.getRecSpd) // f_rec_spd
-              acc.int16(trk.getDir) // f_dir
-              acc.int32(trk.getSignal) // f_signal
-              acc.int16(trk.getIoSt) // f_io_st
-              acc.int32(trk.getVidAlm) // f_vid_alm
-              acc.int16(trk.getAdasAlm) // f_adas_alm
-              acc.fld(trk.getMile) // f_mile
-              acc.fld(trk.getGas) // f_gas
-              acc.str(trk.getDrvName) // f_drv_name
-              acc.str(trk.getDrvNo) // f_drv_no
-
-              val addt = trk.getAddt
-              var s: String = null
-              if (addt != null) s = gson.toJson(addt)
-              else s = null
-              acc.str(s) // f_addt
-            }
-          )
+  /**
+   * 批量保存历史轨迹，返回未能保存的轨迹数。与 `bulkSaveHisTrks()` 相同，被去重过滤器丢弃的补传轨迹视为已保存。
+   */
+  override def saveHisTrks(trks: Array[Trk], count: Int): Int = {
+    if (count == 0) return 0
+
+    val dedupFilter = options.dedupFilter
+    if (dedupFilter != null) {
+      // filter a copy, the caller's array is left untouched
+      val kept = java.util.Arrays.copyOf(trks, count)
+      val n = dedupFilter.filter(kept, count)
+      if (n < count)
+        return doSaveHisTrks(kept, n)
+    }
+
+    doSaveHisTrks(trks, count)
+  }
+
+  private def doSaveHisTrks(trks: Array[Trk], count: Int): Int = {
+    if (count == 0) return 0
+
+    if (options.hisCopyShards > 1 && count >= options.hisCopyShards * TrkDao_Pg.MinRowsPerShard) {
+      var failed = 0
+      bulkSaveHisTrksSharded(trks, count, options.hisCopyShards).forEach(r => {
+        failed += r.failed
+        if (!r.success)
+          LOGGER.error(s"Error occurred when save trks of shard ${r.shard} (${r.count} trks).", r.error)
+      })
+      return failed
+    }
+
+    val (failed, error) = copyOrSpill(trks, count)
+    if (error != null)
+      LOGGER.error("Error occurred when save trks.", error)
+    failed
+  }
+
+  /**
+   * COPY the trks, spill the ones not saved.
+   * If `TrkDaoPgOptions.deadLetterStore` is configured, a batch failed by bad data is bisected and retried, only
+   * the offending trks go to the dead letter store.
+   *
+   * @return count of the trks not saved (spilled or dead-lettered), and the error that stopped the save, null if no
+   *         trks were spilled
+   */
+  private def copyOrSpill(trks: Array[Trk], count: Int): (Int, Throwable) = {
+    val deadLetterStore = options.deadLetterStore
+    if (deadLetterStore == null) {
+      try {
+        copyHisTrks(trks, count)
+        return (0, null)
+      } catch {
+        case t: Throwable =>
+          spill(trks, count)
+          return (count, t)
+      }
+    }
+
+    val r = BatchBisector.execute(trks, count, (a: Array[Trk], n: Int) => copyHisTrks(a, n), deadLetterStore)
+    if (r.getDeadLettered > 0)
+      LOGGER.warn(s"${r.getDeadLettered} of $count trks moved to dead letter store after ${r.getAttempts} attempts.")
+
+    if (!r.isSuccess) {
+      val unwritten = r.getUnwritten
+      spill(unwritten.toArray(new Array[Trk](unwritten.size())), unwritten.size())
+    }
+
+    (r.getUnwritten.size() + r.getDeadLettered, r.getError)
+  }
+
+  private final val qryHisTrksSql =
+    s"SELECT $fieldsStr FROM t_trk WHERE f_sim_no = ? AND f_gps_tm >= ? AND f_gps_tm < ? ORDER BY f_gps_tm"
+
+  private def getIntObj(rs: ResultSet, idx: Int): Integer = {
+    val v = rs.getInt(idx)
+    if (rs.wasNull()) null else Integer.valueOf(v)
+  }
+
+  private def getFloatObj(rs: ResultSet, idx: Int): java.lang.Float = {
+    val v = rs.getFloat(idx)
+    if (rs.wasNull()) null else java.lang.Float.valueOf(v)
+  }
+
+  private def getTsz(rs: ResultSet, idx: Int): java.lang.Long = {
+    val v = rs.getTimestamp(idx)
+    if (v != null) java.lang.Long.valueOf(v.getTime) else null
+  }
+
+  // Column layout: `fields`
+  private def mapTrk(rs: ResultSet): Trk = {
+    val trk = TrkDao_Pg.newTrk(gson, rs.getString(25))
+    trk.setId(rs.getString(1))
+    trk.setSimNo(rs.getString(2))
+    trk.setVehId(rs.getString(3))
+    trk.setPlateNo(rs.getString(4))
+    trk.setPlateColor(getIntObj(rs, 5))
+    trk.setRecvTm(getTsz(rs, 6))
+    trk.setGpsTm(getTsz(rs, 7))
+    trk.setReTrans(rs.getBoolean(8))
+    trk.setAlm(rs.getInt(9))
+    trk.setSt(rs.getInt(10))
+    trk.setLng(rs.getDouble(11))
+    trk.setLat(rs.getDouble(12))
+    trk.setAlt(rs.getInt(13))
+    trk.setSpd(rs.getFloat(14))
+    trk.setRecSpd(getFloatObj(rs, 15))
+    trk.setDir(rs.getInt(16))
+    trk.setSignal(getIntObj(rs, 17))
+    trk.setIoSt(getIntObj(rs, 18))
+    trk.setVidAlm(getIntObj(rs, 19))
+    trk.setAdasAlm(getIntObj(rs, 20))
+    trk.setMile(getFloatObj(rs, 21))
+    trk.setGas(getFloatObj(rs, 22))
+    trk.setDrvName(rs.getString(23))
+    trk.setDrvNo(rs.getString(24))
+    trk
+  }
+
+  private final val qryAllHisTrksSql =
+    s"SELECT $fieldsStr FROM t_trk WHERE f_gps_tm >= ? AND f_gps_tm < ? ORDER BY f_sim_no, f_gps_tm"
+
+  private final val qryLatestTrksSql = s"SELECT $fieldsStr FROM t_latest_trk"
+
+  /**
+   * Open a cursor on a dedicated connection (not the one bound to the current transaction), it holds the connection
+   * until closed.
+   */
+  private def openCursor(sql: String, fetchSize: Int, binder: PreparedStatement => Unit): TrkCursor = {
+    require(fetchSize > 0, "fetchSize must be positive")
+
+    val conn: Connection = ds.getConnection
+    var autoCommit = false
+    try {
+      // pgjdbc uses a server-side cursor only outside auto-commit mode
+      autoCommit = conn.getAutoCommit
+      if (autoCommit) conn.setAutoCommit(false)
+
+      val ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+      ps.setFetchSize(fetchSize)
+      binder(ps)
+
+      new TrkCursor(conn, ps, ps.executeQuery(), rs => mapTrk(rs), autoCommit)
+    } catch {
+      case t: Throwable =>
+        try {
+          if (autoCommit) {
+            conn.rollback()
+            conn.setAutoCommit(true)
+          }
+        } finally {
+          conn.close()
         }
-      }}
-    }}.recover(t => {
-      LOGGER.error("Error occurred when save trks.", t)
+        throw t
+    }
+  }
+
+  override def openHisTrkCursor(@NonNull simNo: String, beginTime: Long, endTime: Long, fetchSize: Int): TrkCursor =
+    openCursor(qryHisTrksSql, fetchSize, ps => {
+      ps.setString(1, simNo)
+      setTsz(ps, 2, beginTime)
+      setTsz(ps, 3, endTime)
+    })
+
+  /**
+   * 打开所有终端在指定时间范围内的历史轨迹游标，轨迹按 simNo、定位时间升序排列。
+   *
+   * @param beginTime 开始时间（含），epoch millis
+   * @param endTime   结束时间（不含），epoch millis
+   * @param fetchSize 每批读取的记录数
+   * @return 历史轨迹游标
+   */
+  def openHisTrkCursor(beginTime: Long, endTime: Long, fetchSize: Int): TrkCursor =
+    openCursor(qryAllHisTrksSql, fetchSize, ps => {
+      setTsz(ps, 1, beginTime)
+      setTsz(ps, 2, endTime)
     })
+
+  override def openLatestTrkCursor(fetchSize: Int): TrkCursor =
+    openCursor(qryLatestTrksSql, fetchSize, _ => ())
+
+  private lazy val hisQryExecutor: ExecutorService = {
+    val seq = new AtomicInteger()
+    val executor = Executors.newCachedThreadPool((r: Runnable) => {
+      val t = new Thread(r, "trk-his-qry-" + seq.incrementAndGet())
+      t.setDaemon(true)
+      t
+    })
+    executors.add(executor)
+    executor
+  }
+
+  override def hisTrkPublisher(@NonNull simNo: String, beginTime: Long, endTime: Long, fetchSize: Int): Flow.Publisher[Trk] =
+    hisTrkPublisher(simNo, beginTime, endTime, fetchSize, hisQryExecutor)
+
+  /**
+   * 以 `Flow.Publisher` 的形式查询历史轨迹
+   *
+   * @param executor 读取游标并发送数据的执行器
+   */
+  def hisTrkPublisher(@NonNull simNo: String,
+                      beginTime: Long,
+                      endTime: Long,
+                      fetchSize: Int,
+                      @NonNull executor: Executor): Flow.Publisher[Trk] =
+    new TrkPublisher(() => openHisTrkCursor(simNo, beginTime, endTime, fetchSize), executor)
+
+  private def spill(trks: Array[Trk], count: Int): Unit = {
+    val journal = options.spillJournal
+    if (journal != null) {
+      try {
+        journal.append(trks, count)
+      } catch {
+        case t: Throwable =>
+          LOGGER.error("Error occurred when spill trks.", t)
+      }
+    }
   }
 }
 
 object TrkDao_Pg {
   private final val LOGGER = Logger("gnss.trkDaoPg")
+
+  private final val ReplayDeadLetterStore: DeadLetterStore[Trk] = DeadLetterStore.logging("spilledTrk")
+
+  /**
+   * A batch is copied in parallel only if every shard gets this many rows on average.
+   */
+  private final val MinRowsPerShard = 1000
+
+  /**
+   * Create a `Trk` whose `addt` is parsed from the given JSON.
+   *
+   * @param addtJson JSON of `Trk.addt`, may be null
+   */
+  private[trk] def newTrk(gson: Gson, addtJson: String): Trk =
+    if (addtJson != null)
+      gson.fromJson("{\"addt\":" + addtJson + "}", classOf[Trk])
+    else
+      new Trk
 }
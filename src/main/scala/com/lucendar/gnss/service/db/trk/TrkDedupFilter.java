@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 补传轨迹去重过滤器。
+ * <p>
+ * 以 (simNo, gpsTm, lng, lat) 为指纹，按定位时间分桶记录在轮换的 Bloom 过滤器中：每个桶覆盖 `bucketMillis` 的定位时间，
+ * 共 `bucketCount` 个桶，新时段的轨迹到达时复用最旧的桶。
+ * <p>
+ * 在 `TrkDaoPgOptions.dedupFilter` 中配置后，`TrkDao_Pg.bulkSaveHisTrks()` 在 COPY 前调用 `filter()` 丢弃可能已保存的补传轨迹，
+ * 并在保存成功后（本类实现了 `HisTrkListener`）记录已保存轨迹的指纹。只有补传轨迹会被丢弃，实时上报的轨迹总是保存，
+ * 因此误判最多丢失补传的轨迹。定位时间早于最旧桶的轨迹无法判断，总是保存。
+ * <p>
+ * 定位时间超前当前时间一个时间窗口（`bucketMillis * bucketCount`）以上的轨迹（终端时钟错误）不被记录，也总是保存，
+ * 以免其占用的桶提前淘汰正常时段的指纹。
+ * <p>
+ * 本类是线程安全的。
+ */
+public class TrkDedupFilter implements HisTrkListener {
+
+    private static final class Bucket {
+        final AtomicLongArray words;
+        volatile long index = Long.MIN_VALUE;
+
+        Bucket(int wordCount) {
+            words = new AtomicLongArray(wordCount);
+        }
+    }
+
+    private final long bucketMillis;
+    private final long windowMillis;
+    private final Bucket[] buckets;
+    private final long bitsPerBucket;
+    private final int hashCount;
+    private final TrkDedupMetrics metrics;
+
+    /**
+     * @param bucketMillis      每个桶覆盖的定位时间长度，单位：毫秒
+     * @param bucketCount       桶数量。`bucketMillis * bucketCount` 即可去重的时间窗口
+     * @param memoryBudgetBytes 全部桶占用的内存，单位：字节
+     * @param fpp               期望的误判率，用于确定哈希函数个数
+     * @param metrics           指标，为 null 时不记录指标
+     */
+    public TrkDedupFilter(long bucketMillis, int bucketCount, long memoryBudgetBytes, double fpp,
+                          @Nullable TrkDedupMetrics metrics) {
+        if (bucketMillis <= 0)
+            throw new IllegalArgumentException("bucketMillis");
+        if (bucketCount <= 0)
+            throw new IllegalArgumentException("bucketCount");
+        if (!(fpp > 0 && fpp < 1))
+            throw new IllegalArgumentException("fpp");
+
+        long words = memoryBudgetBytes / bucketCount / 8;
+        if (words <= 0 || words > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("memoryBudgetBytes");
+
+        this.bucketMillis = bucketMillis;
+        this.windowMillis = bucketMillis > Long.MAX_VALUE / bucketCount ? Long.MAX_VALUE : bucketMillis * bucketCount;
+        this.buckets = new Bucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++)
+            buckets[i] = new Bucket((int) words);
+        this.bitsPerBucket = words * 64;
+        this.hashCount = Math.max(1, (int) Math.round(-Math.log(fpp) / Math.log(2)));
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return 每个桶在期望误判率下可容纳的指纹数
+     */
+    public long getCapacityPerBucket() {
+        double ln2 = Math.log(2);
+        return (long) (bitsPerBucket * ln2 / hashCount);
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long fingerprint(String simNo, long gpsTm, Trk trk) {
+        long h = simNo.hashCode();
+        h = mix(h * 31 + gpsTm);
+        h = mix(h * 31 + Math.round(trk.getLng() * 1e6));
+        h = mix(h * 31 + Math.round(trk.getLat() * 1e6));
+        return h;
+    }
+
+    private Bucket bucketOf(long index) {
+        return buckets[(int) Math.floorMod(index, (long) buckets.length)];
+    }
+
+    private boolean mightContain(Bucket b, long index, long fp) {
+        if (b.index != index)
+            return false;
+
+        int h1 = (int) fp;
+        int h2 = (int) (fp >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitsPerBucket;
+            if ((b.words.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    private void put(long index, long fp) {
+        Bucket b = bucketOf(index);
+        if (b.index < index) {
+            synchronized (b) {
+                if (b.index < index) {
+                    // the bucket is reused for a newer period, forget the old one
+                    for (int i = 0; i < b.words.length(); i++)
+                        b.words.set(i, 0);
+                    b.index = index;
+                }
+            }
+        }
+
+        if (b.index != index)
+            return;
+
+        int h1 = (int) fp;
+        int h2 = (int) (fp >>> 32);
+        for (int i = 1; i <= hashCount; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bitsPerBucket;
+            int w = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((b.words.get(w) & mask) == 0)
+                b.words.getAndAccumulate(w, mask, (x, y) -> x | y);
+        }
+    }
+
+    // a bogus future gpsTm would claim a bucket and evict a current period
+    private boolean tooFarAhead(long gpsTm) {
+        return gpsTm - System.currentTimeMillis() > windowMillis;
+    }
+
+    /**
+     * 判断轨迹是否可能已保存
+     *
+     * @param trk 轨迹
+     * @return 可能已保存时返回 true；一定未保存时返回 false
+     */
+    public boolean mightContain(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+        Long gpsTm = trk.getGpsTm();
+        if (simNo == null || gpsTm == null || tooFarAhead(gpsTm))
+            return false;
+
+        long index = Math.floorDiv(gpsTm, bucketMillis);
+        return mightContain(bucketOf(index), index, fingerprint(simNo, gpsTm, trk));
+    }
+
+    /**
+     * 记录轨迹的指纹
+     *
+     * @param trk 轨迹
+     */
+    public void put(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+        Long gpsTm = trk.getGpsTm();
+        if (simNo == null || gpsTm == null || tooFarAhead(gpsTm))
+            return;
+
+        put(Math.floorDiv(gpsTm, bucketMillis), fingerprint(simNo, gpsTm, trk));
+    }
+
+    /**
+     * 丢弃可能已保存的补传轨迹，剩余的轨迹依次移到数组前部
+     *
+     * @param trks  轨迹数组
+     * @param count 轨迹数量
+     * @return 剩余的轨迹数量
+     */
+    public int filter(@NonNull Trk[] trks, int count) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            Trk trk = trks[i];
+            if (!trk.isReTrans() || !mightContain(trk))
+                trks[n++] = trk;
+        }
+
+        for (int i = n; i < count; i++)
+            trks[i] = null;
+
+        if (metrics != null) {
+            metrics.checkedTrkCounter().inc(count);
+            if (count > n)
+                metrics.droppedTrkCounter().inc(count - n);
+        }
+
+        return n;
+    }
+
+    @Override
+    public void onHisTrksSaved(Trk[] trks, int count) {
+        for (int i = 0; i < count; i++)
+            put(trks[i]);
+    }
+}
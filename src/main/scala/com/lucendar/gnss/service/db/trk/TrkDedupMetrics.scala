@@ -0,0 +1,18 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import io.prometheus.metrics.core.metrics.Counter
+
+/**
+ * `TrkDedupFilter` 的指标
+ *
+ * @param checkedTrkCounter 经过去重过滤的轨迹数
+ * @param droppedTrkCounter 判定为重复而丢弃的补传轨迹数
+ */
+case class TrkDedupMetrics(
+                            checkedTrkCounter: Counter,
+                            droppedTrkCounter: Counter
+                          )
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import com.lucendar.common.db.jdbc.ResultSetMapper;
+import com.lucendar.common.db.types.SqlDialect;
+import com.lucendar.gnss.service.db.AbstractJdbcDao;
+import com.lucendar.gnss.service.db.job.PartitionMaintainListener;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.List;
+
+/**
+ * `t_trk` 的分区边界表，用于将历史轨迹直接 COPY 到其 `f_gps_tm` 所在的子分区。
+ * <p>
+ * 边界从系统目录读取并缓存，调用 `refresh()` 或分区维护完成后（本类实现了 `PartitionMaintainListener`）刷新。
+ * 未刷新或刷新失败时 `partitionOf()` 返回 null，调用者应回退到父表。
+ */
+public class TrkPartitionMap extends AbstractJdbcDao implements PartitionMaintainListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.trkPartitionMap");
+
+    public record Partition(@NonNull String table, long fromMillis, long toMillis) {
+    }
+
+    private record Snapshot(long[] froms, long[] tos, String[] tables) {
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(new long[0], new long[0], new String[0]);
+
+    // language=PostgreSQL
+    private static final String SELECT_PARTITIONS = """
+            SELECT f_table, f_from, f_to
+            FROM (
+                SELECT c.oid::regclass::text AS f_table,
+                       substring(pg_get_expr(c.relpartbound, c.oid) from 'FROM \\(''([^'']+)''\\)')::timestamptz AS f_from,
+                       substring(pg_get_expr(c.relpartbound, c.oid) from 'TO \\(''([^'']+)''\\)')::timestamptz AS f_to
+                FROM pg_inherits i
+                JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE i.inhparent = ?::regclass
+            ) p
+            WHERE f_from IS NOT NULL AND f_to IS NOT NULL
+            ORDER BY f_from
+            """;
+
+    private static final ResultSetMapper<Partition> PARTITION_MAPPER = acc -> {
+        String table = acc.str();
+        long from = acc.epochMillisLong();
+        long to = acc.epochMillisLong();
+        return new Partition(table, from, to);
+    };
+
+    private final String parentTable;
+    private volatile Snapshot snapshot = EMPTY;
+
+    public TrkPartitionMap(@NonNull DataSource ds, @NonNull SqlDialect sqlDialect, @NonNull String parentTable) {
+        super(ds, sqlDialect);
+        this.parentTable = parentTable;
+    }
+
+    public TrkPartitionMap(@NonNull DataSource ds, @NonNull SqlDialect sqlDialect) {
+        this(ds, sqlDialect, "t_trk");
+    }
+
+    public String getParentTable() {
+        return parentTable;
+    }
+
+    /**
+     * 从数据库重新读取分区边界。本方法不抛出异常，失败时保留原有的边界。
+     *
+     * @return 是否读取成功
+     */
+    public boolean refresh() {
+        try {
+            List<Partition> list = qryList(SELECT_PARTITIONS, strStmtSetter(parentTable), PARTITION_MAPPER);
+            int n = list.size();
+            long[] froms = new long[n];
+            long[] tos = new long[n];
+            String[] tables = new String[n];
+            for (int i = 0; i < n; i++) {
+                Partition p = list.get(i);
+                froms[i] = p.fromMillis();
+                tos[i] = p.toMillis();
+                tables[i] = p.table();
+            }
+
+            snapshot = new Snapshot(froms, tos, tables);
+            LOGGER.debug("{} partitions of {} loaded.", n, parentTable);
+            return true;
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred when load partitions of " + parentTable + ".", t);
+            return false;
+        }
+    }
+
+    @Override
+    public void onPartitionsMaintained() {
+        refresh();
+    }
+
+    /**
+     * 取给定时间所在的子分区
+     *
+     * @param epochMillis 时间
+     * @return 子分区表名。没有对应的子分区时返回 null。
+     */
+    @Nullable
+    public String partitionOf(long epochMillis) {
+        Snapshot s = snapshot;
+        long[] froms = s.froms;
+
+        // the last partition whose lower bound <= epochMillis
+        int lo = 0;
+        int hi = froms.length - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (froms[mid] <= epochMillis) {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+
+        if (found >= 0 && epochMillis < s.tos[found])
+            return s.tables[found];
+        else
+            return null;
+    }
+
+    /**
+     * 取已缓存的所有子分区，按下界升序排列
+     *
+     * @return 子分区列表
+     */
+    public List<Partition> partitions() {
+        Snapshot s = snapshot;
+        Partition[] r = new Partition[s.tables.length];
+        for (int i = 0; i < r.length; i++)
+            r[i] = new Partition(s.tables[i], s.froms[i], s.tos[i]);
+        return List.of(r);
+    }
+}
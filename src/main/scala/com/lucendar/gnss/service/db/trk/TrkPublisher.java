@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 历史轨迹发布者。
+ * <p>
+ * 每个订阅者在首次请求数据时打开一个独立的 `TrkCursor`，之后按订阅者的请求量在 `executor` 中从游标读取并发送轨迹，
+ * 不会预先读取超过请求量的数据。全部发送完毕、出错或取消订阅时关闭游标。
+ */
+public class TrkPublisher implements Flow.Publisher<Trk> {
+
+    private final Supplier<TrkCursor> cursorFactory;
+    private final Executor executor;
+
+    /**
+     * @param cursorFactory 游标工厂，每个订阅调用一次
+     * @param executor      读取游标并发送数据的执行器
+     */
+    public TrkPublisher(@NonNull Supplier<TrkCursor> cursorFactory, @NonNull Executor executor) {
+        this.cursorFactory = cursorFactory;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Trk> subscriber) {
+        Objects.requireNonNull(subscriber);
+        var subscription = new TrkSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private class TrkSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super Trk> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        // accessed by the drain loop only, which is serialized by `wip`
+        private TrkCursor cursor;
+        private volatile boolean done;
+        // set by request(n <= 0), delivered by the drain loop so that signals stay serialized
+        private volatile Throwable requestError;
+
+        TrkSubscription(Flow.Subscriber<? super Trk> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done)
+                return;
+
+            if (n <= 0) {
+                requestError = new IllegalArgumentException("Non-positive request: " + n + ".");
+                schedule();
+                return;
+            }
+
+            demand.getAndAccumulate(n, (cur, add) -> {
+                long r = cur + add;
+                return r < 0 ? Long.MAX_VALUE : r;
+            });
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                closeCursor();
+                return;
+            }
+
+            if (requestError != null) {
+                fail(requestError);
+                return;
+            }
+
+            try {
+                if (cursor == null)
+                    cursor = cursorFactory.get();
+
+                while (demand.get() > 0 && !done && requestError == null) {
+                    if (!cursor.hasNext()) {
+                        done = true;
+                        closeCursor();
+                        subscriber.onComplete();
+                        return;
+                    }
+
+                    subscriber.onNext(cursor.next());
+                    demand.decrementAndGet();
+                }
+            } catch (Throwable t) {
+                fail(t);
+                return;
+            }
+
+            if (done)
+                closeCursor();
+            else if (requestError != null)
+                fail(requestError);
+        }
+
+        private void fail(Throwable t) {
+            done = true;
+            closeCursor();
+            subscriber.onError(t);
+        }
+
+        private void closeCursor() {
+            if (cursor != null) {
+                cursor.close();
+                cursor = null;
+            }
+        }
+    }
+}
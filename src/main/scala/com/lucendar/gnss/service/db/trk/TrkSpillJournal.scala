@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import com.google.gson.{Gson, JsonParseException}
+import com.lucendar.gnss.service.db.trk.TrkSpillJournal._
+import com.typesafe.scalalogging.Logger
+import info.gratour.jt808common.protocol.msg.types.trk.Trk
+import org.checkerframework.checker.nullness.qual.{NonNull, Nullable}
+
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.nio.{BufferUnderflowException, ByteBuffer, MappedByteBuffer}
+import java.util
+import java.util.zip.CRC32C
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+/**
+ * 轨迹转存日志。
+ *
+ * 历史轨迹保存失败时，将其以紧凑的二进制格式追加到本地内存映射的段文件中，待数据库恢复后由 `TrkSpillReplayer`
+ * 重新保存。磁盘占用不超过 `segmentSize * maxSegments`，空间已满时新的轨迹将被丢弃。
+ *
+ * 段文件格式：
+ * {{{
+ *   magic(int) readPos(int) record* 0(int)
+ *   record := len(int) crc(int) count(int) trk{count}
+ * }}}
+ * `readPos` 为下一条待重放记录的位置，每条记录重放成功后更新，因此进程重启后不会重复重放。
+ * `len` 为 `crc` 之后的数据长度，`crc` 为其 CRC32C 校验值。
+ *
+ * 重放由调用者提供的保存函数完成，保存函数抛出异常时重放中止，该记录在下次重放时重试；调用者应自行隔离数据错误的轨迹
+ * （参见 `TrkDao_Pg.replayHisTrks()`），否则一条坏记录将阻塞整个日志。
+ *
+ * 重放时遇到损坏的段（标记不符、记录长度越界、校验值不符或无法解码），已重放的记录保留，该段被改名为 `*.seg.bad`
+ * 隔离，然后继续重放下一段。
+ *
+ * 每次 `append()` 返回前将写入的记录刷到磁盘，因此已追加的轨迹在操作系统崩溃后仍然保留。重放进度 `readPos` 不刷盘，
+ * 操作系统崩溃后部分已重放的记录可能被再次重放。
+ *
+ * `append()` 可被多线程并发调用；`replay()` 同一时刻只能由一个线程调用。
+ *
+ * @param dir         段文件目录
+ * @param gson        用于转换 `Trk.addt`
+ * @param segmentSize 段文件大小，单位：字节
+ * @param maxSegments 最大段文件数
+ * @param metrics     指标，为 null 时不记录指标
+ */
+class TrkSpillJournal(@NonNull dir: Path,
+                      @NonNull gson: Gson,
+                      segmentSize: Int,
+                      maxSegments: Int,
+                      @Nullable metrics: TrkSpillMetrics) {
+
+  def this(@NonNull dir: Path, @NonNull gson: Gson, @Nullable metrics: TrkSpillMetrics) =
+    this(dir, gson, DefaultSegmentSize, DefaultMaxSegments, metrics)
+
+  require(segmentSize >= MinSegmentSize, "segmentSize")
+  require(maxSegments >= 2, "maxSegments")
+
+  private final val lock = new Object
+  private final val sealedSegments = new util.ArrayDeque[Path]()
+
+  private var active: MappedByteBuffer = _
+  private var activePath: Path = _
+  private var activePos: Int = 0
+  private var nextSeq: Long = 0
+  private var encodeBuf: ByteBuffer = ByteBuffer.allocate(64 * 1024)
+
+  locally {
+    Files.createDirectories(dir)
+
+    val existing = Using.resource(Files.list(dir)) { s =>
+      s.iterator().asScala
+        .filter(p => p.getFileName.toString.matches(SegmentFileNamePattern))
+        .toArray
+        .sortBy(seqOf)
+    }
+
+    existing.foreach(p => sealedSegments.add(p))
+    if (existing.nonEmpty)
+      nextSeq = seqOf(existing.last) + 1
+  }
+
+  private def seqOf(path: Path): Long = {
+    val name = path.getFileName.toString
+    name.substring(SegmentFilePrefix.length, name.length - SegmentFileSuffix.length).toLong
+  }
+
+  private def map(path: Path): MappedByteBuffer =
+    Using.resource(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ch => ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize)
+    }
+
+  /**
+   * 已使用的段文件数，包括正在写入的段
+   */
+  def segmentCount: Int = lock.synchronized {
+    sealedSegments.size() + (if (active != null) 1 else 0)
+  }
+
+  /**
+   * 是否为空，即没有待重放的轨迹
+   */
+  def isEmpty: Boolean = lock.synchronized {
+    sealedSegments.isEmpty && (active == null || activePos == HeaderSize)
+  }
+
+  private def sealActive(): Unit = {
+    if (active != null) {
+      active.force()
+      sealedSegments.add(activePath)
+      active = null
+      activePath = null
+    }
+  }
+
+  private def newActive(): Boolean = {
+    if (sealedSegments.size() >= maxSegments)
+      return false
+
+    val path = dir.resolve(SegmentFilePrefix + f"$nextSeq%016d" + SegmentFileSuffix)
+    nextSeq += 1
+
+    val buf = map(path)
+    buf.putInt(0, Magic)
+    buf.putInt(4, HeaderSize)
+
+    active = buf
+    activePath = path
+    activePos = HeaderSize
+    true
+  }
+
+  private def ensure(n: Int): Unit = {
+    if (encodeBuf.remaining() < n) {
+      val nb = ByteBuffer.allocate(Math.max(encodeBuf.capacity() * 2, encodeBuf.position() + n))
+      encodeBuf.flip()
+      nb.put(encodeBuf)
+      encodeBuf = nb
+    }
+  }
+
+  private def putStr(s: String): Unit = {
+    if (s == null) {
+      ensure(4)
+      encodeBuf.putInt(-1)
+    } else {
+      val bytes = s.getBytes(StandardCharsets.UTF_8)
+      ensure(4 + bytes.length)
+      encodeBuf.putInt(bytes.length)
+      encodeBuf.put(bytes)
+    }
+  }
+
+  private def encode(trks: Array[Trk], offset: Int, count: Int): Unit = {
+    encodeBuf.clear()
+    ensure(4)
+    encodeBuf.putInt(count)
+
+    for (i <- offset until offset + count) {
+      val trk = trks(i)
+
+      val plateColor: Integer = trk.getPlateColor
+      val recvTm: java.lang.Long = trk.getRecvTm
+      val gpsTm: java.lang.Long = trk.getGpsTm
+      val recSpd: java.lang.Float = trk.getRecSpd
+      val signal: Integer = trk.getSignal
+      val ioSt: Integer = trk.getIoSt
+      val vidAlm: Integer = trk.getVidAlm
+      val adasAlm: Integer = trk.getAdasAlm
+      val mile: java.lang.Float = trk.getMile
+      val gas: java.lang.Float = trk.getGas
+
+      var flags = 0
+      if (plateColor != null) flags |= F_PLATE_COLOR
+      if (recvTm != null) flags |= F_RECV_TM
+      if (gpsTm != null) flags |= F_GPS_TM
+      if (recSpd != null) flags |= F_REC_SPD
+      if (signal != null) flags |= F_SIGNAL
+      if (ioSt != null) flags |= F_IO_ST
+      if (vidAlm != null) flags |= F_VID_ALM
+      if (adasAlm != null) flags |= F_ADAS_ALM
+      if (mile != null) flags |= F_MILE
+      if (gas != null) flags |= F_GAS
+      if (trk.isReTrans) flags |= F_RETRANS
+
+      ensure(FixedTrkSize)
+      encodeBuf.putInt(flags)
+      encodeBuf.putInt(if (plateColor != null) plateColor.intValue else 0)
+      encodeBuf.putLong(if (recvTm != null) recvTm.longValue else 0L)
+      encodeBuf.putLong(if (gpsTm != null) gpsTm.longValue else 0L)
+      encodeBuf.putInt(trk.getAlm)
+      encodeBuf.putInt(trk.getSt)
+      encodeBuf.putDouble(trk.getLng)
+      encodeBuf.putDouble(trk.getLat)
+      encodeBuf.putInt(trk.getAlt)
+      encodeBuf.putFloat(trk.getSpd)
+      encodeBuf.putFloat(if (recSpd != null) recSpd.floatValue else 0f)
+      encodeBuf.putInt(trk.getDir)
+      encodeBuf.putInt(if (signal != null) signal.intValue else 0)
+      encodeBuf.putInt(if (ioSt != null) ioSt.intValue else 0)
+      encodeBuf.putInt(if (vidAlm != null) vidAlm.intValue else 0)
+      encodeBuf.putInt(if (adasAlm != null) adasAlm.intValue else 0)
+      encodeBuf.putFloat(if (mile != null) mile.floatValue else 0f)
+      encodeBuf.putFloat(if (gas != null) gas.floatValue else 0f)
+
+      putStr(trk.getId)
+      putStr(trk.getSimNo)
+      putStr(trk.getVehId)
+      putStr(trk.getPlateNo)
+      putStr(trk.getDrvName)
+      putStr(trk.getDrvNo)
+      putStr(if (trk.getAddt != null) gson.toJson(trk.getAddt) else null)
+    }
+
+    encodeBuf.flip()
+  }
+
+  private def appendRecord(trks: Array[Trk], offset: Int, count: Int): Boolean = {
+    encode(trks, offset, count)
+    val len = encodeBuf.remaining()
+    if (HeaderSize + RecordHeaderSize + len + 4 > segmentSize)
+      throw new IllegalStateException(s"Record of $count trks exceeds the segment size.")
+
+    if (active == null || activePos + RecordHeaderSize + len + 4 > segmentSize) {
+      sealActive()
+      if (!newActive())
+        return false
+    }
+
+    val crc = new CRC32C
+    crc.update(encodeBuf.duplicate())
+
+    active.putInt(activePos + 4, crc.getValue.toInt)
+    active.put(activePos + RecordHeaderSize, encodeBuf, 0, len)
+    // the length is written last, so a partially written record is never visible to the reader
+    active.putInt(activePos, len)
+    activePos += RecordHeaderSize + len
+    true
+  }
+
+  /**
+   * 追加轨迹
+   *
+   * @param trks  轨迹数组
+   * @param count 轨迹数量
+   * @return 已追加的轨迹数量。空间已满时，剩余的轨迹将被丢弃。
+   */
+  def append(@NonNull trks: Array[Trk], count: Int): Int = {
+    var appended = 0
+    lock.synchronized {
+      val seg = active
+      val from = activePos
+      try {
+        while (appended < count) {
+          val n = Math.min(count - appended, MaxTrksPerRecord)
+          if (!appendRecord(trks, appended, n)) {
+            LOGGER.warn(s"Spill journal is full, ${count - appended} trks dropped.")
+            if (metrics != null)
+              metrics.droppedTrkCounter.inc(count - appended)
+
+            return appended
+          }
+
+          appended += n
+        }
+      } finally {
+        // segments sealed meanwhile are forced by sealActive(), force what is written into the active one
+        if (active != null) {
+          val start = if (active eq seg) from else 0
+          if (activePos > start)
+            active.force(start, activePos - start)
+        }
+      }
+    }
+
+    if (metrics != null)
+      metrics.spilledTrkCounter.inc(appended)
+
+    appended
+  }
+
+  private def getStr(buf: ByteBuffer): String = {
+    val len = buf.getInt()
+    if (len < 0)
+      null
+    else {
+      val bytes = new Array[Byte](len)
+      buf.get(bytes)
+      new String(bytes, StandardCharsets.UTF_8)
+    }
+  }
+
+  private def decode(buf: ByteBuffer): Array[Trk] = {
+    val count = buf.getInt()
+    val r = new Array[Trk](count)
+
+    for (i <- 0 until count) {
+      val flags = buf.getInt()
+      val plateColor = buf.getInt()
+      val recvTm = buf.getLong()
+      val gpsTm = buf.getLong()
+      val alm = buf.getInt()
+      val st = buf.getInt()
+      val lng = buf.getDouble()
+      val lat = buf.getDouble()
+      val alt = buf.getInt()
+      val spd = buf.getFloat()
+      val recSpd = buf.getFloat()
+      val dir = buf.getInt()
+      val signal = buf.getInt()
+      val ioSt = buf.getInt()
+      val vidAlm = buf.getInt()
+      val adasAlm = buf.getInt()
+      val mile = buf.getFloat()
+      val gas = buf.getFloat()
+
+      val id = getStr(buf)
+      val simNo = getStr(buf)
+      val vehId = getStr(buf)
+      val plateNo = getStr(buf)
+      val drvName = getStr(buf)
+      val drvNo = getStr(buf)
+      val addt = getStr(buf)
+
+      val trk = TrkDao_Pg.newTrk(gson, addt)
+      trk.setId(id)
+      trk.setSimNo(simNo)
+      trk.setVehId(vehId)
+      trk.setPlateNo(plateNo)
+      trk.setPlateColor(if ((flags & F_PLATE_COLOR) != 0) Integer.valueOf(plateColor) else null)
+      trk.setRecvTm(if ((flags & F_RECV_TM) != 0) java.lang.Long.valueOf(recvTm) else null)
+      trk.setGpsTm(if ((flags & F_GPS_TM) != 0) java.lang.Long.valueOf(gpsTm) else null)
+      trk.setReTrans((flags & F_RETRANS) != 0)
+      trk.setAlm(alm)
+      trk.setSt(st)
+      trk.setLng(lng)
+      trk.setLat(lat)
+      trk.setAlt(alt)
+      trk.setSpd(spd)
+      trk.setRecSpd(if ((flags & F_REC_SPD) != 0) java.lang.Float.valueOf(recSpd) else null)
+      trk.setDir(dir)
+      trk.setSignal(if ((flags & F_SIGNAL) != 0) Integer.valueOf(signal) else null)
+      trk.setIoSt(if ((flags & F_IO_ST) != 0) Integer.valueOf(ioSt) else null)
+      trk.setVidAlm(if ((flags & F_VID_ALM) != 0) Integer.valueOf(vidAlm) else null)
+      trk.setAdasAlm(if ((flags & F_ADAS_ALM) != 0) Integer.valueOf(adasAlm) else null)
+      trk.setMile(if ((flags & F_MILE) != 0) java.lang.Float.valueOf(mile) else null)
+      trk.setGas(if ((flags & F_GAS) != 0) java.lang.Float.valueOf(gas) else null)
+      trk.setDrvName(drvName)
+      trk.setDrvNo(drvNo)
+
+      r(i) = trk
+    }
+
+    r
+  }
+
+  /**
+   * Decode the record at `pos`.
+   *
+   * @return trks of the record, or null if the record is corrupted
+   */
+  private def readRecord(buf: ByteBuffer, pos: Int, len: Int): Array[Trk] = {
+    if (len > segmentSize - pos - RecordHeaderSize)
+      return null
+
+    val record = buf.slice(pos + RecordHeaderSize, len)
+    val crc = new CRC32C
+    crc.update(record.duplicate())
+    if (crc.getValue.toInt != buf.getInt(pos + 4))
+      return null
+
+    try {
+      decode(record)
+    } catch {
+      case _: BufferUnderflowException | _: IllegalArgumentException | _: NegativeArraySizeException |
+           _: JsonParseException =>
+        null
+    }
+  }
+
+  private def quarantine(path: Path, reason: String): Unit = {
+    val target = path.resolveSibling(path.getFileName.toString + QuarantineSuffix)
+    LOGGER.error(s"Spill journal segment $path is corrupted ($reason), moved to $target.")
+    try {
+      Files.move(path, target, StandardCopyOption.REPLACE_EXISTING)
+    } catch {
+      case t: Throwable =>
+        LOGGER.error(s"Move spill journal segment $path failed, deleted.", t)
+        Files.deleteIfExists(path)
+    }
+  }
+
+  /**
+   * 按写入顺序重放转存的轨迹。`save` 抛出异常时停止重放并将异常抛出，未成功保存的记录在下次重放时重试。
+   * 损坏的段被隔离，不影响其它段的重放。
+   *
+   * @param save 保存轨迹的方法，保存失败时应抛出异常
+   * @return 成功重放的轨迹数
+   */
+  def replay(@NonNull save: (Array[Trk], Int) => Unit): Int = {
+    var replayed = 0
+    var done = false
+
+    while (!done) {
+      val path = lock.synchronized {
+        if (sealedSegments.isEmpty && active != null && activePos > HeaderSize)
+          sealActive()
+
+        sealedSegments.peekFirst()
+      }
+
+      if (path == null)
+        done = true
+      else {
+        val buf = map(path)
+        var corruption: String = null
+        if (buf.getInt(0) != Magic)
+          corruption = "invalid magic"
+        else {
+          var pos = buf.getInt(4)
+          if (pos < HeaderSize || pos > segmentSize)
+            corruption = s"invalid read position $pos"
+
+          while (corruption == null && pos + RecordHeaderSize <= segmentSize && buf.getInt(pos) != 0) {
+            val len = buf.getInt(pos)
+            val trks = if (len > 0) readRecord(buf, pos, len) else null
+            if (trks == null)
+              corruption = s"invalid record at $pos"
+            else {
+              save(trks, trks.length)
+
+              pos += RecordHeaderSize + len
+              buf.putInt(4, pos)
+              replayed += trks.length
+              if (metrics != null)
+                metrics.replayedTrkCounter.inc(trks.length)
+            }
+          }
+        }
+
+        lock.synchronized {
+          sealedSegments.removeFirst()
+        }
+        if (corruption != null)
+          quarantine(path, corruption)
+        else
+          Files.deleteIfExists(path)
+      }
+    }
+
+    replayed
+  }
+}
+
+object TrkSpillJournal {
+  private final val LOGGER = Logger("gnss.trkSpillJournal")
+
+  final val DefaultSegmentSize = 64 * 1024 * 1024
+  final val DefaultMaxSegments = 32
+
+  private final val MinSegmentSize = 1024 * 1024
+  private final val MaxTrksPerRecord = 1000
+
+  private final val Magic = 0x54534A32 // TSJ2
+  private final val HeaderSize = 8
+  // len, crc
+  private final val RecordHeaderSize = 8
+
+  private final val SegmentFilePrefix = "trk-spill-"
+  private final val SegmentFileSuffix = ".seg"
+  private final val SegmentFileNamePattern = "trk-spill-\\d+\\.seg"
+  private final val QuarantineSuffix = ".bad"
+
+  // size of the fixed part of a trk
+  private final val FixedTrkSize = 4 * 14 + 8 * 4
+
+  private final val F_PLATE_COLOR = 1
+  private final val F_RECV_TM = 1 << 1
+  private final val F_GPS_TM = 1 << 2
+  private final val F_REC_SPD = 1 << 3
+  private final val F_SIGNAL = 1 << 4
+  private final val F_IO_ST = 1 << 5
+  private final val F_VID_ALM = 1 << 6
+  private final val F_ADAS_ALM = 1 << 7
+  private final val F_MILE = 1 << 8
+  private final val F_GAS = 1 << 9
+  private final val F_RETRANS = 1 << 10
+}
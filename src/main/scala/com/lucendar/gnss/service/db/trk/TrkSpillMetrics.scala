@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import io.prometheus.metrics.core.metrics.Counter
+
+/**
+ * `TrkSpillJournal` 的指标
+ *
+ * @param spilledTrkCounter  写入转存日志的轨迹数
+ * @param replayedTrkCounter 从转存日志重新保存到数据库的轨迹数
+ * @param droppedTrkCounter  因转存日志空间已满而丢弃的轨迹数
+ */
+case class TrkSpillMetrics(
+                            spilledTrkCounter : Counter,
+                            replayedTrkCounter: Counter,
+                            droppedTrkCounter : Counter
+                          )
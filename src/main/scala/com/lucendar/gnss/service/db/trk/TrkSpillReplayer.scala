@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import akka.actor.{Actor, Props, Timers}
+import com.lucendar.gnss.service.db.trk.TrkSpillReplayer.{LOGGER, Replay, ReplayTimerKey}
+import com.typesafe.scalalogging.Logger
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+ * Replay the trks spilled into `TrkSpillJournal` through `TrkDao_Pg.replayHisTrks()` periodically. Trks with bad data
+ * are moved to the dead letter store, a replay failed by other errors is retried at the next period.
+ *
+ * @param journal  the spill journal
+ * @param trkDao   the trk DAO
+ * @param interval replay interval
+ */
+class TrkSpillReplayer(journal : TrkSpillJournal,
+                       trkDao  : TrkDao_Pg,
+                       interval: FiniteDuration) extends Actor with Timers {
+
+  override def preStart(): Unit = {
+    timers.startTimerWithFixedDelay(ReplayTimerKey, Replay, interval)
+  }
+
+  override def receive: Receive = {
+    case Replay =>
+      if (!journal.isEmpty) {
+        try {
+          val n = journal.replay((trks, count) => trkDao.replayHisTrks(trks, count))
+          LOGGER.info(s"$n spilled trks replayed.")
+        } catch {
+          case t: Throwable =>
+            LOGGER.warn(s"Replay spilled trks failed, will retry after $interval.", t)
+        }
+      }
+  }
+}
+
+object TrkSpillReplayer {
+  private final val LOGGER = Logger("gnss.trkSpillReplayer")
+
+  private case object ReplayTimerKey
+
+  private case object Replay
+
+  def props(journal: TrkSpillJournal, trkDao: TrkDao_Pg, interval: FiniteDuration): Props =
+    Props(new TrkSpillReplayer(journal, trkDao, interval))
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.archive;
+
+import com.lucendar.common.utils.DateTimeUtils;
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Consumer;
+
+/**
+ * 轨迹归档目录。每天（北京时间）的轨迹保存为一个文件：`trk-yyyyMMdd.tca`。
+ */
+public class TrkArchive {
+
+    public static final long DAY_MILLIS = 24L * 3600 * 1000;
+
+    private static final long OFFSET_MILLIS = DateTimeUtils.ZONE_OFFSET_BEIJING.getTotalSeconds() * 1000L;
+    private static final DateTimeFormatter FILE_NAME_FORMATTER = DateTimeFormatter.ofPattern("'trk-'yyyyMMdd'.tca'");
+
+    private final Path dir;
+
+    public TrkArchive(@NonNull Path dir) {
+        this.dir = dir;
+    }
+
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * 取给定时间所在日期 0 点的时间
+     *
+     * @param epochMillis 时间
+     * @return 日期 0 点的时间，epoch millis
+     */
+    public static long dayOf(long epochMillis) {
+        return Math.floorDiv(epochMillis + OFFSET_MILLIS, DAY_MILLIS) * DAY_MILLIS - OFFSET_MILLIS;
+    }
+
+    /**
+     * 取指定日期的归档文件
+     *
+     * @param dayMillis 日期 0 点的时间，epoch millis
+     * @return 归档文件路径
+     */
+    public Path fileOf(long dayMillis) {
+        LocalDate date = LocalDate.ofInstant(Instant.ofEpochMilli(dayMillis), DateTimeUtils.ZONE_OFFSET_BEIJING);
+        return dir.resolve(FILE_NAME_FORMATTER.format(date));
+    }
+
+    /**
+     * 指定日期是否已归档
+     *
+     * @param dayMillis 日期 0 点的时间，epoch millis
+     */
+    public boolean isArchived(long dayMillis) {
+        return Files.exists(fileOf(dayMillis));
+    }
+
+    /**
+     * 读取指定终端在指定时间范围内的归档轨迹，轨迹按定位时间升序排列。未归档的日期被跳过。
+     *
+     * @param simNo     终端识别号
+     * @param beginTime 开始时间（含），epoch millis
+     * @param endTime   结束时间（不含），epoch millis
+     * @param consumer  轨迹接收者
+     * @return 读取的轨迹数
+     */
+    public int scan(@NonNull String simNo, long beginTime, long endTime, @NonNull Consumer<Trk> consumer)
+            throws IOException {
+        int n = 0;
+        for (long day = dayOf(beginTime); day < endTime; day += DAY_MILLIS) {
+            Path file = fileOf(day);
+            if (!Files.exists(file))
+                continue;
+
+            try (var reader = TrkArchiveReader.open(file)) {
+                n += reader.scan(simNo, beginTime, endTime, consumer);
+            }
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.archive;
+
+import com.lucendar.gnss.service.db.job.PartitionMaintainListener;
+import com.lucendar.gnss.service.db.trk.TrkCursor;
+import com.lucendar.gnss.service.db.trk.TrkDao_Pg;
+import com.lucendar.gnss.service.db.trk.TrkPartitionMap;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * 轨迹归档导出器。
+ * <p>
+ * 注册到 `PartitionMaintainJob` 后，在删除过期分区前，将上界早于 `当前时间 - archiveAfterDays` 的 `t_trk` 子分区按天导出为
+ * 归档文件。已存在归档文件的日期不再导出。导出失败时推迟删除过期分区，下次维护时重试。
+ * <p>
+ * `archiveAfterDays` 必须小于 `p_delete_old_parts()` 保留的天数，否则分区会在导出前被删除。
+ */
+public class TrkArchiveExporter implements PartitionMaintainListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.trkArchiveExporter");
+
+    private static final int FETCH_SIZE = 10000;
+
+    private final TrkDao_Pg trkDao;
+    private final TrkPartitionMap partitionMap;
+    private final TrkArchive archive;
+    private final int archiveAfterDays;
+
+    /**
+     * @param trkDao           轨迹 DAO
+     * @param partitionMap     `t_trk` 分区边界表
+     * @param archive          归档目录
+     * @param archiveAfterDays 分区上界早于当前时间多少天后导出
+     */
+    public TrkArchiveExporter(@NonNull TrkDao_Pg trkDao,
+                              @NonNull TrkPartitionMap partitionMap,
+                              @NonNull TrkArchive archive,
+                              int archiveAfterDays) {
+        if (archiveAfterDays < 0)
+            throw new IllegalArgumentException("archiveAfterDays must not be negative.");
+
+        this.trkDao = trkDao;
+        this.partitionMap = partitionMap;
+        this.archive = archive;
+        this.archiveAfterDays = archiveAfterDays;
+    }
+
+    @Override
+    public boolean beforeDeleteOldParts() {
+        try {
+            return exportExpiring();
+        } catch (Throwable t) {
+            LOGGER.error("Error occurred when export trk archives.", t);
+            return false;
+        }
+    }
+
+    @Override
+    public void onPartitionsMaintained() {
+    }
+
+    /**
+     * 导出即将过期的分区
+     *
+     * @return 即将过期的分区是否已全部归档。分区边界读取失败或为空时返回 false，以免删除未归档的分区
+     */
+    public boolean exportExpiring() throws IOException {
+        Files.createDirectories(archive.getDir());
+        if (!partitionMap.refresh()) {
+            LOGGER.warn("Partitions unknown, deleting old partitions postponed.");
+            return false;
+        }
+
+        List<TrkPartitionMap.Partition> partitions = partitionMap.partitions();
+        if (partitions.isEmpty()) {
+            LOGGER.warn("No partition found, deleting old partitions postponed.");
+            return false;
+        }
+
+        long cutoff = System.currentTimeMillis() - archiveAfterDays * TrkArchive.DAY_MILLIS;
+        boolean success = true;
+        for (TrkPartitionMap.Partition p : partitions) {
+            if (p.toMillis() > cutoff)
+                continue;
+
+            for (long day = TrkArchive.dayOf(p.fromMillis()); day < p.toMillis(); day += TrkArchive.DAY_MILLIS) {
+                if (archive.isArchived(day))
+                    continue;
+
+                // a day may span two partitions, export it once the later one is expiring as well
+                long end = day + TrkArchive.DAY_MILLIS;
+                if (end > cutoff) {
+                    // not archived yet, the partition must not be deleted
+                    success = false;
+                    continue;
+                }
+
+                try {
+                    int n = exportDay(day);
+                    LOGGER.info("{} trks archived into {}.", n, archive.fileOf(day));
+                } catch (Throwable t) {
+                    success = false;
+                    LOGGER.error("Error occurred when export trk archive " + archive.fileOf(day) + ".", t);
+                }
+            }
+        }
+
+        return success;
+    }
+
+    /**
+     * 导出指定日期的轨迹
+     *
+     * @param dayMillis 日期 0 点的时间，epoch millis
+     * @return 导出的轨迹数
+     */
+    public int exportDay(long dayMillis) throws IOException {
+        var writer = new TrkArchiveWriter(archive.fileOf(dayMillis), dayMillis);
+        int n = 0;
+        try (TrkCursor cursor = trkDao.openHisTrkCursor(dayMillis, dayMillis + TrkArchive.DAY_MILLIS, FETCH_SIZE)) {
+            while (cursor.hasNext()) {
+                writer.append(cursor.next());
+                n++;
+            }
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        writer.close();
+        return n;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.archive;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Constants and codec helpers of the track archive file.
+ * <p>
+ * Layout (big endian):
+ * <pre>
+ * header : magic(4) version(2) dayMillis(8)
+ * blocks : one block per terminal, rows ordered by gpsTm
+ *          rowCount(varint), then each column as columnByteLen(varint) + values
+ *            gpsTm    : first value zigzag, first delta zigzag, then delta-of-delta zigzag
+ *            lng, lat : value * 1e6 as integer, first value zigzag, then delta zigzag
+ *            alt, dir : first value zigzag, then delta zigzag
+ *            spd      : value * 10 as integer, first value zigzag, then delta zigzag
+ *            alm, st  : unsigned varint
+ * index  : per terminal, ordered by simNo:
+ *          simNo(varint len + utf8) offset(varint) length(varint) rowCount(varint) minTs(zigzag) maxTs(zigzag)
+ * footer : indexOffset(8) indexCount(4) magic(4)
+ * </pre>
+ */
+final class TrkArchiveFormat {
+
+    static final int MAGIC = 0x47544341; // GTCA
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 4 + 2 + 8;
+    static final int FOOTER_SIZE = 8 + 4 + 4;
+
+    static final double DEG_SCALE = 1e6;
+    static final double SPD_SCALE = 10.0;
+
+    static final int COLUMN_COUNT = 8;
+
+    private TrkArchiveFormat() {
+    }
+
+    static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static long readVarLong(ByteBuffer buf) {
+        long r = 0;
+        int shift = 0;
+        for (; ; ) {
+            byte b = buf.get();
+            r |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return r;
+            shift += 7;
+            if (shift > 63)
+                throw new IllegalStateException("Malformed varint.");
+        }
+    }
+
+    static long readZigZag(ByteBuffer buf) {
+        return unZigZag(readVarLong(buf));
+    }
+
+    /**
+     * Growable byte buffer for encoding.
+     */
+    static final class Bytes {
+        byte[] data;
+        int size;
+
+        Bytes(int initialCapacity) {
+            data = new byte[initialCapacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        private void ensure(int n) {
+            if (data.length - size < n)
+                data = Arrays.copyOf(data, Math.max(size + n, data.length * 2));
+        }
+
+        void put(byte[] src, int off, int len) {
+            ensure(len);
+            System.arraycopy(src, off, data, size, len);
+            size += len;
+        }
+
+        void putVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                data[size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[size++] = (byte) v;
+        }
+
+        void putZigZag(long v) {
+            putVarLong(zigZag(v));
+        }
+
+        void putShort(int v) {
+            ensure(2);
+            data[size++] = (byte) (v >>> 8);
+            data[size++] = (byte) v;
+        }
+
+        void putInt(int v) {
+            ensure(4);
+            data[size++] = (byte) (v >>> 24);
+            data[size++] = (byte) (v >>> 16);
+            data[size++] = (byte) (v >>> 8);
+            data[size++] = (byte) v;
+        }
+
+        void putLong(long v) {
+            putInt((int) (v >>> 32));
+            putInt((int) v);
+        }
+    }
+}
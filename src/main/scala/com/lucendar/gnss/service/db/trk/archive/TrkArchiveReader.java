@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.archive;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import static com.lucendar.gnss.service.db.trk.archive.TrkArchiveFormat.*;
+
+/**
+ * 轨迹归档文件读取器。
+ * <p>
+ * 打开时只读取文件的索引，查询时按索引读取指定终端的数据块，并跳过时间范围不相交的数据块。本类是线程安全的。
+ */
+public class TrkArchiveReader implements AutoCloseable {
+
+    private record Entry(long offset, int length, int count, long minTs, long maxTs) {
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long dayMillis;
+    private final Map<String, Entry> entries;
+    private final List<String> simNos;
+
+    private TrkArchiveReader(Path file, FileChannel channel, long dayMillis, Map<String, Entry> entries,
+                             List<String> simNos) {
+        this.file = file;
+        this.channel = channel;
+        this.dayMillis = dayMillis;
+        this.entries = entries;
+        this.simNos = simNos;
+    }
+
+    /**
+     * 打开归档文件
+     *
+     * @param file 归档文件
+     * @return 读取器
+     */
+    public static TrkArchiveReader open(@NonNull Path file) throws IOException {
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = ch.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE)
+                throw new IOException("Invalid trk archive file: " + file + ".");
+
+            ByteBuffer header = readFully(ch, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC)
+                throw new IOException("Invalid trk archive file: " + file + ".");
+            short ver = header.getShort();
+            if (ver != VERSION)
+                throw new IOException("Unsupported trk archive version " + ver + ": " + file + ".");
+            long dayMillis = header.getLong();
+
+            ByteBuffer footer = readFully(ch, size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            int indexCount = footer.getInt();
+            if (footer.getInt() != MAGIC)
+                throw new IOException("Incomplete trk archive file: " + file + ".");
+
+            ByteBuffer index = readFully(ch, indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            Map<String, Entry> entries = new HashMap<>(indexCount * 2);
+            List<String> simNos = new ArrayList<>(indexCount);
+            for (int i = 0; i < indexCount; i++) {
+                byte[] sim = new byte[(int) readVarLong(index)];
+                index.get(sim);
+                String simNo = new String(sim, StandardCharsets.UTF_8);
+                long offset = readVarLong(index);
+                int length = (int) readVarLong(index);
+                int count = (int) readVarLong(index);
+                long minTs = readZigZag(index);
+                long maxTs = readZigZag(index);
+                entries.put(simNo, new Entry(offset, length, count, minTs, maxTs));
+                simNos.add(simNo);
+            }
+
+            return new TrkArchiveReader(file, ch, dayMillis, entries, Collections.unmodifiableList(simNos));
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0)
+                throw new IOException("Unexpected end of trk archive file.");
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return 归档日期 0 点的时间，epoch millis
+     */
+    public long getDayMillis() {
+        return dayMillis;
+    }
+
+    /**
+     * @return 归档中的终端识别号，升序排列
+     */
+    public List<String> simNos() {
+        return simNos;
+    }
+
+    private static long[] column(ByteBuffer buf, int count, boolean delta) {
+        int len = (int) readVarLong(buf);
+        int end = buf.position() + len;
+        long[] r = new long[count];
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            if (delta) {
+                prev += readZigZag(buf);
+                r[i] = prev;
+            } else
+                r[i] = readVarLong(buf);
+        }
+        buf.position(end);
+        return r;
+    }
+
+    /**
+     * 读取指定终端在指定时间范围内的轨迹，轨迹按定位时间升序排列
+     *
+     * @param simNo     终端识别号
+     * @param beginTime 开始时间（含），epoch millis
+     * @param endTime   结束时间（不含），epoch millis
+     * @param consumer  轨迹接收者
+     * @return 读取的轨迹数
+     */
+    public int scan(@NonNull String simNo, long beginTime, long endTime, @NonNull Consumer<Trk> consumer)
+            throws IOException {
+        Entry e = entries.get(simNo);
+        if (e == null || e.maxTs < beginTime || e.minTs >= endTime)
+            return 0;
+
+        ByteBuffer buf = readFully(channel, e.offset, e.length);
+        int count = (int) readVarLong(buf);
+
+        // gpsTm: delta-of-delta
+        int tsLen = (int) readVarLong(buf);
+        int tsEnd = buf.position() + tsLen;
+        long[] gpsTms = new long[count];
+        long prev = 0;
+        long delta = 0;
+        for (int i = 0; i < count; i++) {
+            long v = readZigZag(buf);
+            delta = i < 2 ? v : delta + v;
+            prev += delta;
+            gpsTms[i] = prev;
+        }
+        buf.position(tsEnd);
+
+        long[] lngs = column(buf, count, true);
+        long[] lats = column(buf, count, true);
+        long[] alts = column(buf, count, true);
+        long[] spds = column(buf, count, true);
+        long[] dirs = column(buf, count, true);
+        long[] alms = column(buf, count, false);
+        long[] sts = column(buf, count, false);
+
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            long gpsTm = gpsTms[i];
+            if (gpsTm < beginTime || gpsTm >= endTime)
+                continue;
+
+            var trk = new Trk();
+            trk.setSimNo(simNo);
+            trk.setGpsTm(gpsTm);
+            trk.setLng(lngs[i] / DEG_SCALE);
+            trk.setLat(lats[i] / DEG_SCALE);
+            trk.setAlt((int) alts[i]);
+            trk.setSpd((float) (spds[i] / SPD_SCALE));
+            trk.setDir((int) dirs[i]);
+            trk.setAlm((int) alms[i]);
+            trk.setSt((int) sts[i]);
+            consumer.accept(trk);
+            n++;
+        }
+
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
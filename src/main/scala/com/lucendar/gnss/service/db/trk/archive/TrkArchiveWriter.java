@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.archive;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static com.lucendar.gnss.service.db.trk.archive.TrkArchiveFormat.*;
+
+/**
+ * 轨迹归档文件写入器。
+ * <p>
+ * 轨迹必须按 simNo、定位时间升序写入。写入过程中数据保存在临时文件中，`close()` 时写入索引并原子地重命名为目标文件，
+ * 因此目标文件存在即表示归档完整。写入失败时调用 `abort()` 删除临时文件。
+ * <p>
+ * 归档只保存定位时间、经纬度、高程、速度、方向、报警标志和状态，其它字段不保存。
+ */
+public class TrkArchiveWriter implements AutoCloseable {
+
+    private final Path file;
+    private final Path tmpFile;
+    private final FileChannel channel;
+    private final OutputStream out;
+    private long pos;
+    private boolean closed;
+
+    // rows of the current terminal
+    private String simNo;
+    private int count;
+    private long[] gpsTms = new long[1024];
+    private long[] lngs = new long[1024];
+    private long[] lats = new long[1024];
+    private int[] alts = new int[1024];
+    private int[] spds = new int[1024];
+    private int[] dirs = new int[1024];
+    private int[] alms = new int[1024];
+    private int[] sts = new int[1024];
+
+    private final Bytes block = new Bytes(64 * 1024);
+    private final Bytes column = new Bytes(16 * 1024);
+    private final Bytes index = new Bytes(64 * 1024);
+    private int indexCount;
+
+    /**
+     * @param file      归档文件
+     * @param dayMillis 归档日期 0 点的时间，epoch millis
+     */
+    public TrkArchiveWriter(@NonNull Path file, long dayMillis) throws IOException {
+        this.file = file;
+        this.tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        this.channel = FileChannel.open(tmpFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+
+        var header = new Bytes(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putShort(VERSION);
+        header.putLong(dayMillis);
+        write(header);
+    }
+
+    private void write(Bytes bytes) throws IOException {
+        out.write(bytes.data, 0, bytes.size);
+        pos += bytes.size;
+    }
+
+    /**
+     * 写入一条轨迹。定位时间为 null 的轨迹被忽略。
+     *
+     * @param trk 轨迹
+     */
+    public void append(@NonNull Trk trk) throws IOException {
+        String sim = trk.getSimNo();
+        Long gpsTm = trk.getGpsTm();
+        if (sim == null || gpsTm == null)
+            return;
+
+        if (!sim.equals(simNo)) {
+            if (simNo != null) {
+                if (sim.compareTo(simNo) < 0)
+                    throw new IllegalArgumentException("Trks are not ordered by simNo: " + sim + " after " + simNo + ".");
+                flushBlock();
+            }
+            simNo = sim;
+        }
+
+        if (count == gpsTms.length)
+            grow();
+
+        gpsTms[count] = gpsTm;
+        lngs[count] = Math.round(trk.getLng() * DEG_SCALE);
+        lats[count] = Math.round(trk.getLat() * DEG_SCALE);
+        alts[count] = trk.getAlt();
+        spds[count] = Math.round(trk.getSpd() * (float) SPD_SCALE);
+        dirs[count] = trk.getDir();
+        alms[count] = trk.getAlm();
+        sts[count] = trk.getSt();
+        count++;
+    }
+
+    private void grow() {
+        int n = gpsTms.length * 2;
+        gpsTms = Arrays.copyOf(gpsTms, n);
+        lngs = Arrays.copyOf(lngs, n);
+        lats = Arrays.copyOf(lats, n);
+        alts = Arrays.copyOf(alts, n);
+        spds = Arrays.copyOf(spds, n);
+        dirs = Arrays.copyOf(dirs, n);
+        alms = Arrays.copyOf(alms, n);
+        sts = Arrays.copyOf(sts, n);
+    }
+
+    private void endColumn() {
+        block.putVarLong(column.size);
+        block.put(column.data, 0, column.size);
+        column.clear();
+    }
+
+    private void deltaColumn(long[] values) {
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            column.putZigZag(values[i] - prev);
+            prev = values[i];
+        }
+        endColumn();
+    }
+
+    private void deltaColumn(int[] values) {
+        long prev = 0;
+        for (int i = 0; i < count; i++) {
+            column.putZigZag(values[i] - prev);
+            prev = values[i];
+        }
+        endColumn();
+    }
+
+    private void rawColumn(int[] values) {
+        for (int i = 0; i < count; i++)
+            column.putVarLong(values[i] & 0xFFFFFFFFL);
+        endColumn();
+    }
+
+    private void flushBlock() throws IOException {
+        if (count == 0)
+            return;
+
+        block.clear();
+        block.putVarLong(count);
+
+        // gpsTm: delta-of-delta
+        long prev = 0;
+        long prevDelta = 0;
+        for (int i = 0; i < count; i++) {
+            long delta = gpsTms[i] - prev;
+            column.putZigZag(i < 2 ? delta : delta - prevDelta);
+            prevDelta = delta;
+            prev = gpsTms[i];
+        }
+        endColumn();
+
+        deltaColumn(lngs);
+        deltaColumn(lats);
+        deltaColumn(alts);
+        deltaColumn(spds);
+        deltaColumn(dirs);
+        rawColumn(alms);
+        rawColumn(sts);
+
+        long minTs = gpsTms[0];
+        long maxTs = gpsTms[0];
+        for (int i = 1; i < count; i++) {
+            minTs = Math.min(minTs, gpsTms[i]);
+            maxTs = Math.max(maxTs, gpsTms[i]);
+        }
+
+        byte[] sim = simNo.getBytes(StandardCharsets.UTF_8);
+        index.putVarLong(sim.length);
+        index.put(sim, 0, sim.length);
+        index.putVarLong(pos);
+        index.putVarLong(block.size);
+        index.putVarLong(count);
+        index.putZigZag(minTs);
+        index.putZigZag(maxTs);
+        indexCount++;
+
+        write(block);
+        count = 0;
+    }
+
+    /**
+     * 写入索引并生成归档文件
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            flushBlock();
+
+            long indexOffset = pos;
+            write(index);
+
+            var footer = new Bytes(FOOTER_SIZE);
+            footer.putLong(indexOffset);
+            footer.putInt(indexCount);
+            footer.putInt(MAGIC);
+            write(footer);
+
+            // the partition may be deleted once the file exists, make it durable first
+            out.flush();
+            channel.force(true);
+            out.close();
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            syncDir(file.toAbsolutePath().getParent());
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private static void syncDir(Path dir) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * 放弃写入，删除临时文件
+     */
+    public void abort() {
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+
+        try {
+            Files.deleteIfExists(tmpFile);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat;
+
+import java.time.LocalDate;
+
+/**
+ * 终端每日行驶统计
+ */
+public class TrkDayStat {
+    private String simNo;
+    private LocalDate day;
+    private Float mileMin;
+    private Float mileMax;
+    private float maxSpd;
+    private long beginTm;
+    private long endTm;
+    private int drvSecs;
+    private int overspeedSecs;
+
+    public String getSimNo() {
+        return simNo;
+    }
+
+    public void setSimNo(String simNo) {
+        this.simNo = simNo;
+    }
+
+    /**
+     * @return 日期（北京时间）
+     */
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
+    /**
+     * @return 当日最小里程表读数，单位：km。没有里程数据时为 null
+     */
+    public Float getMileMin() {
+        return mileMin;
+    }
+
+    public void setMileMin(Float mileMin) {
+        this.mileMin = mileMin;
+    }
+
+    /**
+     * @return 当日最大里程表读数，单位：km。没有里程数据时为 null
+     */
+    public Float getMileMax() {
+        return mileMax;
+    }
+
+    public void setMileMax(Float mileMax) {
+        this.mileMax = mileMax;
+    }
+
+    /**
+     * @return 当日行驶里程，单位：km。没有里程数据时为 null
+     */
+    public Float getMileage() {
+        if (mileMin != null && mileMax != null)
+            return mileMax - mileMin;
+        else
+            return null;
+    }
+
+    /**
+     * @return 最高速度，单位：km/h
+     */
+    public float getMaxSpd() {
+        return maxSpd;
+    }
+
+    public void setMaxSpd(float maxSpd) {
+        this.maxSpd = maxSpd;
+    }
+
+    /**
+     * @return 当日第一条轨迹的定位时间，epoch millis
+     */
+    public long getBeginTm() {
+        return beginTm;
+    }
+
+    public void setBeginTm(long beginTm) {
+        this.beginTm = beginTm;
+    }
+
+    /**
+     * @return 当日最后一条轨迹的定位时间，epoch millis
+     */
+    public long getEndTm() {
+        return endTm;
+    }
+
+    public void setEndTm(long endTm) {
+        this.endTm = endTm;
+    }
+
+    /**
+     * @return 行驶时长，单位：秒。按分钟统计
+     */
+    public int getDrvSecs() {
+        return drvSecs;
+    }
+
+    public void setDrvSecs(int drvSecs) {
+        this.drvSecs = drvSecs;
+    }
+
+    /**
+     * @return 超速时长，单位：秒。按分钟统计
+     */
+    public int getOverspeedSecs() {
+        return overspeedSecs;
+    }
+
+    public void setOverspeedSecs(int overspeedSecs) {
+        this.overspeedSecs = overspeedSecs;
+    }
+
+    @Override
+    public String toString() {
+        return "TrkDayStat{" +
+                "simNo='" + simNo + '\'' +
+                ", day=" + day +
+                ", mileMin=" + mileMin +
+                ", mileMax=" + mileMax +
+                ", maxSpd=" + maxSpd +
+                ", beginTm=" + beginTm +
+                ", endTm=" + endTm +
+                ", drvSecs=" + drvSecs +
+                ", overspeedSecs=" + overspeedSecs +
+                '}';
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat;
+
+import com.lucendar.common.utils.DateTimeUtils;
+import com.lucendar.gnss.service.db.trk.HisTrkListener;
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.lucendar.gnss.service.db.trk.stat.TrkDayStatDelta.BITMAP_WORDS;
+
+/**
+ * 终端每日行驶统计聚合器。
+ * <p>
+ * 通过 `TrkDao_Pg.addHisTrkListener()` 注册后，按终端、日期（北京时间）增量累计已保存的历史轨迹：
+ * <ul>
+ *     <li>里程：当日里程表读数（`mile`）的最小值和最大值之差</li>
+ *     <li>行驶时长：速度不低于 `drvSpdThreshold` 的分钟数</li>
+ *     <li>超速时长：报警标志包含 `overspeedAlmMask` 的分钟数</li>
+ *     <li>最高速度</li>
+ * </ul>
+ * 所有累计项都与轨迹顺序无关，且重复累计同一轨迹不改变结果，因此乱序和补传轨迹无需特殊处理。
+ * <p>
+ * `flush()` 将有变化的累计结果批量合并到统计表（由 `TrkDayStatFlusher` 定期调用），并移除早于昨天的、无变化的累计结果。
+ * <p>
+ * 累计器以终端识别号为键，每个终端一个，其中按日期保存各天的累计结果；分钟位图在首次置位时才分配。累计一条轨迹不分配对象。
+ */
+public class TrkDayStatAggregator implements HisTrkListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.trkDayStatAggregator");
+
+    /**
+     * JT/T 808 报警标志位 1：超速报警
+     */
+    public static final int ALM_OVERSPEED = 1 << 1;
+
+    private static final long MINUTE_MILLIS = 60_000L;
+    private static final long DAY_MILLIS = 24 * 60 * MINUTE_MILLIS;
+    private static final long OFFSET_MILLIS = DateTimeUtils.ZONE_OFFSET_BEIJING.getTotalSeconds() * 1000L;
+
+    /**
+     * 一个终端一天的累计结果
+     */
+    private static final class Day {
+        final long dayIndex;
+        float mileMin = Float.NaN;
+        float mileMax = Float.NaN;
+        float maxSpd;
+        long beginTm = Long.MAX_VALUE;
+        long endTm = Long.MIN_VALUE;
+        // allocated on the first driving/overspeed minute, most terminal-days never overspeed and parked ones never drive
+        long[] drvBits;
+        long[] overspeedBits;
+        boolean dirty;
+
+        Day(long dayIndex) {
+            this.dayIndex = dayIndex;
+        }
+    }
+
+    /**
+     * 一个终端的累计器。通常只有今天和昨天（迟到的轨迹）两天，以数组按日期线性查找。
+     */
+    private static final class Term {
+        Day[] days = new Day[2];
+        int dayCount;
+        boolean removed;
+
+        Day dayOf(long dayIndex) {
+            for (int i = 0; i < dayCount; i++) {
+                Day d = days[i];
+                if (d.dayIndex == dayIndex)
+                    return d;
+            }
+
+            if (dayCount == days.length)
+                days = Arrays.copyOf(days, dayCount * 2);
+
+            Day d = new Day(dayIndex);
+            days[dayCount++] = d;
+            return d;
+        }
+
+        /**
+         * Drop the days before `minDayIndex` which are merged into the table already.
+         */
+        void evict(long minDayIndex) {
+            int n = 0;
+            for (int i = 0; i < dayCount; i++) {
+                Day d = days[i];
+                if (d.dayIndex >= minDayIndex || d.dirty)
+                    days[n++] = d;
+            }
+            for (int i = n; i < dayCount; i++)
+                days[i] = null;
+            dayCount = n;
+        }
+    }
+
+    private final TrkDayStatDao dao;
+    private final float drvSpdThreshold;
+    private final int overspeedAlmMask;
+    // simNo -> accumulator of the terminal
+    private final ConcurrentHashMap<String, Term> terms = new ConcurrentHashMap<>();
+
+    /**
+     * @param dao              统计 DAO
+     * @param drvSpdThreshold  行驶速度阈值，单位：km/h
+     * @param overspeedAlmMask 超速报警标志位掩码
+     */
+    public TrkDayStatAggregator(@NonNull TrkDayStatDao dao, float drvSpdThreshold, int overspeedAlmMask) {
+        this.dao = dao;
+        this.drvSpdThreshold = drvSpdThreshold;
+        this.overspeedAlmMask = overspeedAlmMask;
+    }
+
+    public TrkDayStatAggregator(@NonNull TrkDayStatDao dao) {
+        this(dao, 5.0f, ALM_OVERSPEED);
+    }
+
+    /**
+     * 累计一条轨迹
+     *
+     * @param trk 轨迹
+     */
+    public void add(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+        Long gpsTmObj = trk.getGpsTm();
+        if (simNo == null || gpsTmObj == null)
+            return;
+
+        final long gpsTm = gpsTmObj;
+        final long local = gpsTm + OFFSET_MILLIS;
+        final long dayIndex = Math.floorDiv(local, DAY_MILLIS);
+        final int minute = (int) (Math.floorMod(local, DAY_MILLIS) / MINUTE_MILLIS);
+
+        for (; ; ) {
+            Term term = terms.get(simNo);
+            if (term == null)
+                term = terms.computeIfAbsent(simNo, k -> new Term());
+            synchronized (term) {
+                // evicted by flush() concurrently, retry with a new one
+                if (term.removed)
+                    continue;
+
+                Day acc = term.dayOf(dayIndex);
+
+                Float mile = trk.getMile();
+                if (mile != null) {
+                    float m = mile;
+                    if (Float.isNaN(acc.mileMin) || m < acc.mileMin)
+                        acc.mileMin = m;
+                    if (Float.isNaN(acc.mileMax) || m > acc.mileMax)
+                        acc.mileMax = m;
+                }
+
+                float spd = trk.getSpd();
+                if (spd > acc.maxSpd)
+                    acc.maxSpd = spd;
+
+                if (gpsTm < acc.beginTm)
+                    acc.beginTm = gpsTm;
+                if (gpsTm > acc.endTm)
+                    acc.endTm = gpsTm;
+
+                if (spd >= drvSpdThreshold)
+                    acc.drvBits = setBit(acc.drvBits, minute);
+                if ((trk.getAlm() & overspeedAlmMask) != 0)
+                    acc.overspeedBits = setBit(acc.overspeedBits, minute);
+
+                acc.dirty = true;
+                return;
+            }
+        }
+    }
+
+    private static long[] setBit(long[] bits, int minute) {
+        if (bits == null)
+            bits = new long[BITMAP_WORDS];
+        bits[minute >>> 6] |= 1L << (minute & 63);
+        return bits;
+    }
+
+    @Override
+    public void onHisTrksSaved(Trk[] trks, int count) {
+        for (int i = 0; i < count; i++)
+            add(trks[i]);
+    }
+
+    /**
+     * @return 累计器数量，即有累计结果的终端数
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * 将有变化的累计结果批量合并到统计表。本方法不抛出异常，合并失败的结果在下次调用时重试。
+     *
+     * @return 合并的结果数
+     */
+    public int flush() {
+        final long today = Math.floorDiv(System.currentTimeMillis() + OFFSET_MILLIS, DAY_MILLIS);
+        final List<Term> flushedTerms = new ArrayList<>();
+        final List<Day> flushed = new ArrayList<>();
+        final List<TrkDayStatDelta> deltas = new ArrayList<>();
+
+        terms.forEach((simNo, term) -> {
+            synchronized (term) {
+                for (int i = 0; i < term.dayCount; i++) {
+                    Day acc = term.days[i];
+                    if (!acc.dirty)
+                        continue;
+
+                    acc.dirty = false;
+                    flushedTerms.add(term);
+                    flushed.add(acc);
+                    deltas.add(new TrkDayStatDelta(
+                            simNo,
+                            LocalDate.ofEpochDay(acc.dayIndex),
+                            Float.isNaN(acc.mileMin) ? null : acc.mileMin,
+                            Float.isNaN(acc.mileMax) ? null : acc.mileMax,
+                            acc.maxSpd,
+                            acc.beginTm,
+                            acc.endTm,
+                            acc.drvBits != null ? acc.drvBits.clone() : null,
+                            acc.overspeedBits != null ? acc.overspeedBits.clone() : null
+                    ));
+                }
+            }
+        });
+
+        if (!deltas.isEmpty()) {
+            try {
+                dao.mergeDayStats(deltas);
+            } catch (Throwable t) {
+                LOGGER.error("Error occurred when merge trk day stats.", t);
+                for (int i = 0; i < flushed.size(); i++) {
+                    synchronized (flushedTerms.get(i)) {
+                        flushed.get(i).dirty = true;
+                    }
+                }
+                return 0;
+            }
+        }
+
+        // keep yesterday's results for late trks, the older ones are merged into the table already
+        terms.values().removeIf(term -> {
+            synchronized (term) {
+                term.evict(today - 1);
+                if (term.dayCount > 0)
+                    return false;
+
+                term.removed = true;
+                return true;
+            }
+        });
+
+        return deltas.size();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.time.LocalDate;
+import java.util.List;
+
+public interface TrkDayStatDao {
+
+    /**
+     * 批量合并每日行驶统计
+     *
+     * @param deltas 部分聚合结果
+     */
+    void mergeDayStats(@NonNull List<TrkDayStatDelta> deltas);
+
+    /**
+     * 查询终端每日行驶统计
+     *
+     * @param simNo    终端识别号
+     * @param beginDay 开始日期（含）
+     * @param endDay   结束日期（含）
+     * @return 统计列表，按日期升序排列
+     */
+    List<TrkDayStat> qryDayStats(@NonNull String simNo, @NonNull LocalDate beginDay, @NonNull LocalDate endDay);
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat
+
+import com.lucendar.common.db.types.SqlDialect
+import com.lucendar.common.utils.DateTimeUtils
+import com.lucendar.gnss.service.db.AbstractJdbcDao
+import org.checkerframework.checker.nullness.qual.NonNull
+import org.springframework.transaction.annotation.Transactional
+
+import java.sql.{ResultSet, Types}
+import java.time.{Instant, LocalDate, OffsetDateTime}
+import javax.sql.DataSource
+import scala.util.Using
+
+/**
+ * `t_trk_day_stat` 的 DAO。
+ *
+ * 表结构：
+ * {{{
+ * CREATE TABLE t_trk_day_stat (
+ *     f_sim_no        varchar(20) NOT NULL,
+ *     f_day           date        NOT NULL,
+ *     f_mile_min      real,
+ *     f_mile_max      real,
+ *     f_max_spd       real        NOT NULL,
+ *     f_begin_tm      timestamptz NOT NULL,
+ *     f_end_tm        timestamptz NOT NULL,
+ *     f_drv_bits      bit(1440)   NOT NULL,
+ *     f_ovs_bits      bit(1440)   NOT NULL,
+ *     f_drv_secs      int         NOT NULL,
+ *     f_ovs_secs      int         NOT NULL,
+ *     PRIMARY KEY (f_sim_no, f_day)
+ * );
+ * }}}
+ */
+class TrkDayStatDao_Pg(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect)
+  extends AbstractJdbcDao(ds, sqlDialect) with TrkDayStatDao {
+
+  // Every column merges order-independently and idempotently, so partial results of the same day can be merged in
+  // any order, any times.
+  private final val mergeSql =
+    """
+    INSERT INTO t_trk_day_stat AS t (f_sim_no, f_day, f_mile_min, f_mile_max, f_max_spd, f_begin_tm, f_end_tm,
+      f_drv_bits, f_ovs_bits, f_drv_secs, f_ovs_secs)
+    VALUES (?, ?, ?, ?, ?, ?, ?, ?::bit(1440), ?::bit(1440), ?, ?)
+    ON CONFLICT (f_sim_no, f_day) DO UPDATE SET
+      f_mile_min = LEAST(t.f_mile_min, excluded.f_mile_min),
+      f_mile_max = GREATEST(t.f_mile_max, excluded.f_mile_max),
+      f_max_spd = GREATEST(t.f_max_spd, excluded.f_max_spd),
+      f_begin_tm = LEAST(t.f_begin_tm, excluded.f_begin_tm),
+      f_end_tm = GREATEST(t.f_end_tm, excluded.f_end_tm),
+      f_drv_bits = t.f_drv_bits | excluded.f_drv_bits,
+      f_ovs_bits = t.f_ovs_bits | excluded.f_ovs_bits,
+      f_drv_secs = 60 * length(replace((t.f_drv_bits | excluded.f_drv_bits)::text, '0', '')),
+      f_ovs_secs = 60 * length(replace((t.f_ovs_bits | excluded.f_ovs_bits)::text, '0', ''))
+    """
+
+  private final val qryDayStatsSql =
+    """
+    SELECT f_sim_no, f_day, f_mile_min, f_mile_max, f_max_spd, f_begin_tm, f_end_tm, f_drv_secs, f_ovs_secs
+    FROM t_trk_day_stat
+    WHERE f_sim_no = ? AND f_day BETWEEN ? AND ?
+    ORDER BY f_day
+    """
+
+  private final val BatchSize = 500
+
+  private def odt(epochMillis: Long): OffsetDateTime =
+    OffsetDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), DateTimeUtils.ZONE_OFFSET_BEIJING)
+
+  private def bitCount(bits: Array[Long]): Int =
+    if (bits == null) 0 else bits.foldLeft(0)((n, w) => n + java.lang.Long.bitCount(w))
+
+  @Transactional
+  override def mergeDayStats(@NonNull deltas: java.util.List[TrkDayStatDelta]): Unit = {
+    if (deltas.isEmpty) return
+
+    // Merge in key order, so concurrent mergers lock rows in the same order.
+    val sorted = new java.util.ArrayList[TrkDayStatDelta](deltas)
+    sorted.sort((a, b) => {
+      val r = a.simNo.compareTo(b.simNo)
+      if (r != 0) r else a.day.compareTo(b.day)
+    })
+
+    dbAction(conn => {
+      Using.resource(conn.prepareStatement(mergeSql)) { ps =>
+        var n = 0
+        sorted.forEach(d => {
+          ps.setString(1, d.simNo)
+          ps.setObject(2, d.day)
+          if (d.mileMin != null) ps.setFloat(3, d.mileMin) else ps.setNull(3, Types.REAL)
+          if (d.mileMax != null) ps.setFloat(4, d.mileMax) else ps.setNull(4, Types.REAL)
+          ps.setFloat(5, d.maxSpd)
+          ps.setObject(6, odt(d.beginTm))
+          ps.setObject(7, odt(d.endTm))
+          ps.setString(8, TrkDayStatDelta.toBitString(d.drvBits))
+          ps.setString(9, TrkDayStatDelta.toBitString(d.overspeedBits))
+          ps.setInt(10, 60 * bitCount(d.drvBits))
+          ps.setInt(11, 60 * bitCount(d.overspeedBits))
+          ps.addBatch()
+
+          n += 1
+          if (n % BatchSize == 0)
+            ps.executeBatch()
+        })
+
+        if (n % BatchSize != 0)
+          ps.executeBatch()
+      }
+    })
+  }
+
+  private def getFloatObj(rs: ResultSet, idx: Int): java.lang.Float = {
+    val v = rs.getFloat(idx)
+    if (rs.wasNull()) null else java.lang.Float.valueOf(v)
+  }
+
+  override def qryDayStats(@NonNull simNo: String,
+                           @NonNull beginDay: LocalDate,
+                           @NonNull endDay: LocalDate): java.util.List[TrkDayStat] = {
+    dbAction(conn => {
+      Using.resource(conn.prepareStatement(qryDayStatsSql)) { ps =>
+        ps.setString(1, simNo)
+        ps.setObject(2, beginDay)
+        ps.setObject(3, endDay)
+
+        Using.resource(ps.executeQuery()) { rs =>
+          val r = new java.util.ArrayList[TrkDayStat]()
+          while (rs.next()) {
+            val stat = new TrkDayStat
+            stat.setSimNo(rs.getString(1))
+            stat.setDay(rs.getObject(2, classOf[LocalDate]))
+            stat.setMileMin(getFloatObj(rs, 3))
+            stat.setMileMax(getFloatObj(rs, 4))
+            stat.setMaxSpd(rs.getFloat(5))
+            stat.setBeginTm(rs.getTimestamp(6).getTime)
+            stat.setEndTm(rs.getTimestamp(7).getTime)
+            stat.setDrvSecs(rs.getInt(8))
+            stat.setOverspeedSecs(rs.getInt(9))
+            r.add(stat)
+          }
+          r
+        }
+      }
+    })
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.time.LocalDate;
+
+/**
+ * 终端每日行驶统计的部分聚合结果，由 `TrkDayStatDao.mergeDayStats()` 合并到统计表中。
+ * 各项的合并都与顺序无关，且重复合并同一结果不改变统计值。
+ *
+ * @param simNo         终端识别号
+ * @param day           日期（北京时间）
+ * @param mileMin       最小里程表读数，单位：km
+ * @param mileMax       最大里程表读数，单位：km
+ * @param maxSpd        最高速度，单位：km/h
+ * @param beginTm       最早定位时间，epoch millis
+ * @param endTm         最晚定位时间，epoch millis
+ * @param drvBits       行驶分钟位图，第 n 位表示当日第 n 分钟，为 null 时表示没有行驶分钟
+ * @param overspeedBits 超速分钟位图，为 null 时表示没有超速分钟
+ */
+public record TrkDayStatDelta(@NonNull String simNo,
+                              @NonNull LocalDate day,
+                              @Nullable Float mileMin,
+                              @Nullable Float mileMax,
+                              float maxSpd,
+                              long beginTm,
+                              long endTm,
+                              long @Nullable [] drvBits,
+                              long @Nullable [] overspeedBits) {
+
+    public static final int MINUTES_PER_DAY = 1440;
+    public static final int BITMAP_WORDS = (MINUTES_PER_DAY + 63) / 64;
+
+    private static final String EMPTY_BIT_STRING = "0".repeat(MINUTES_PER_DAY);
+
+    /**
+     * 将位图转换为 PostgreSQL `bit(1440)` 的文本形式
+     *
+     * @param bits 位图，为 null 时视为全 0
+     */
+    public static String toBitString(long @Nullable [] bits) {
+        if (bits == null)
+            return EMPTY_BIT_STRING;
+
+        char[] r = new char[MINUTES_PER_DAY];
+        for (int i = 0; i < MINUTES_PER_DAY; i++)
+            r[i] = (bits[i >>> 6] & (1L << (i & 63))) != 0 ? '1' : '0';
+        return new String(r);
+    }
+}
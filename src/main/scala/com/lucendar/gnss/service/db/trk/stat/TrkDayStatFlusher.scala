@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk.stat
+
+import akka.actor.{Actor, Props, Timers}
+import com.lucendar.gnss.service.db.trk.stat.TrkDayStatFlusher.{Flush, FlushTimerKey, LOGGER}
+import com.typesafe.scalalogging.Logger
+
+import scala.concurrent.duration.FiniteDuration
+
+/**
+ * Flush the accumulated daily trk statistics of `TrkDayStatAggregator` into `t_trk_day_stat` periodically, and once
+ * more when stopped.
+ *
+ * @param aggregator the aggregator
+ * @param interval   flush interval
+ */
+class TrkDayStatFlusher(aggregator: TrkDayStatAggregator,
+                        interval  : FiniteDuration) extends Actor with Timers {
+
+  override def preStart(): Unit = {
+    timers.startTimerWithFixedDelay(FlushTimerKey, Flush, interval)
+  }
+
+  override def postStop(): Unit = {
+    aggregator.flush()
+  }
+
+  override def receive: Receive = {
+    case Flush =>
+      val n = aggregator.flush()
+      if (n > 0)
+        LOGGER.debug(s"$n trk day stats merged.")
+  }
+}
+
+object TrkDayStatFlusher {
+  private final val LOGGER = Logger("gnss.trkDayStatFlusher")
+
+  private case object FlushTimerKey
+
+  private case object Flush
+
+  def props(aggregator: TrkDayStatAggregator, interval: FiniteDuration): Props =
+    Props(new TrkDayStatFlusher(aggregator, interval))
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trksaver;
+
+/**
+ * 轨迹死区过滤配置。满足任一条件的轨迹被保存，否则被过滤：
+ * <ul>
+ *     <li>与上一条保存的轨迹相比，位置移动超过 `minMoveMeters`</li>
+ *     <li>方向变化不小于 `minDirDelta`</li>
+ *     <li>速度变化不小于 `minSpdDelta`</li>
+ *     <li>报警标志或状态变化</li>
+ *     <li>距上一条保存的轨迹已超过 `maxSilenceMillis`</li>
+ * </ul>
+ *
+ * @param minMoveMeters    最小移动距离，单位：米
+ * @param minDirDelta      最小方向变化，单位：度
+ * @param minSpdDelta      最小速度变化，单位：km/h
+ * @param maxSilenceMillis 最大静默时长，单位：毫秒
+ */
+public record TrkDeadBandConfig(double minMoveMeters, int minDirDelta, float minSpdDelta, long maxSilenceMillis) {
+
+    public static final TrkDeadBandConfig DEFAULT = new TrkDeadBandConfig(10.0, 10, 2.0f, 5 * 60 * 1000L);
+
+    public TrkDeadBandConfig {
+        if (minMoveMeters < 0)
+            throw new IllegalArgumentException("minMoveMeters");
+        if (minDirDelta < 0)
+            throw new IllegalArgumentException("minDirDelta");
+        if (minSpdDelta < 0)
+            throw new IllegalArgumentException("minSpdDelta");
+        if (maxSilenceMillis <= 0)
+            throw new IllegalArgumentException("maxSilenceMillis");
+    }
+
+    public TrkDeadBandConfig withMinMoveMeters(double minMoveMeters) {
+        return new TrkDeadBandConfig(minMoveMeters, minDirDelta, minSpdDelta, maxSilenceMillis);
+    }
+
+    public TrkDeadBandConfig withMinDirDelta(int minDirDelta) {
+        return new TrkDeadBandConfig(minMoveMeters, minDirDelta, minSpdDelta, maxSilenceMillis);
+    }
+
+    public TrkDeadBandConfig withMinSpdDelta(float minSpdDelta) {
+        return new TrkDeadBandConfig(minMoveMeters, minDirDelta, minSpdDelta, maxSilenceMillis);
+    }
+
+    public TrkDeadBandConfig withMaxSilenceMillis(long maxSilenceMillis) {
+        return new TrkDeadBandConfig(minMoveMeters, minDirDelta, minSpdDelta, maxSilenceMillis);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trksaver;
+
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * 轨迹死区过滤器，过滤停车时重复上报的、没有变化的轨迹。
+ * <p>
+ * 每个终端只保存上一条被保存的轨迹的定位时间、经纬度（微度）、速度、方向、报警标志和状态，存放在开放寻址的并列基本类型数组中，
+ * 每个终端约 40 字节，不为终端创建对象。补传轨迹和没有定位时间的轨迹不过滤，也不改变终端状态。
+ * <p>
+ * 本类不是线程安全的，`TrkSaver` 的每个写入线程使用独立的过滤器。
+ */
+public class TrkDeadBandFilter {
+
+    private static final double METERS_PER_MICRO_DEGREE = 111_320.0 / 1e6;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final TrkDeadBandConfig config;
+    private final double minMoveMetersSq;
+
+    private String[] keys;
+    private long[] gpsTms;
+    private int[] lngs;
+    private int[] lats;
+    private float[] spds;
+    private short[] dirs;
+    private int[] alms;
+    private int[] sts;
+    private int size;
+    private int mask;
+
+    public TrkDeadBandFilter(@NonNull TrkDeadBandConfig config) {
+        this.config = config;
+        this.minMoveMetersSq = config.minMoveMeters() * config.minMoveMeters();
+        alloc(INITIAL_CAPACITY);
+    }
+
+    private void alloc(int capacity) {
+        keys = new String[capacity];
+        gpsTms = new long[capacity];
+        lngs = new int[capacity];
+        lats = new int[capacity];
+        spds = new float[capacity];
+        dirs = new short[capacity];
+        alms = new int[capacity];
+        sts = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return the index of the key, or `-(insertion point) - 1` if absent
+     */
+    private int indexOf(String key) {
+        int i = hash(key) & mask;
+        for (; ; ) {
+            String k = keys[i];
+            if (k == null)
+                return -i - 1;
+            if (k.equals(key))
+                return i;
+            i = (i + 1) & mask;
+        }
+    }
+
+    private void rehash() {
+        String[] oldKeys = keys;
+        long[] oldGpsTms = gpsTms;
+        int[] oldLngs = lngs;
+        int[] oldLats = lats;
+        float[] oldSpds = spds;
+        short[] oldDirs = dirs;
+        int[] oldAlms = alms;
+        int[] oldSts = sts;
+
+        alloc(oldKeys.length * 2);
+        for (int j = 0; j < oldKeys.length; j++) {
+            String k = oldKeys[j];
+            if (k != null) {
+                int i = -indexOf(k) - 1;
+                keys[i] = k;
+                gpsTms[i] = oldGpsTms[j];
+                lngs[i] = oldLngs[j];
+                lats[i] = oldLats[j];
+                spds[i] = oldSpds[j];
+                dirs[i] = oldDirs[j];
+                alms[i] = oldAlms[j];
+                sts[i] = oldSts[j];
+                size++;
+            }
+        }
+    }
+
+    private void store(int i, long gpsTm, int lng, int lat, Trk trk) {
+        gpsTms[i] = gpsTm;
+        lngs[i] = lng;
+        lats[i] = lat;
+        spds[i] = trk.getSpd();
+        dirs[i] = (short) trk.getDir();
+        alms[i] = trk.getAlm();
+        sts[i] = trk.getSt();
+    }
+
+    private static int angleDelta(int a, int b) {
+        int d = Math.abs(a - b) % 360;
+        return d > 180 ? 360 - d : d;
+    }
+
+    /**
+     * 判断轨迹是否需要保存。需要保存时，以该轨迹更新终端状态。
+     *
+     * @param trk 轨迹
+     * @return 是否需要保存
+     */
+    public boolean accept(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+        Long gpsTmObj = trk.getGpsTm();
+        if (simNo == null || gpsTmObj == null || trk.isReTrans())
+            return true;
+
+        final long gpsTm = gpsTmObj;
+        final int lng = (int) Math.round(trk.getLng() * 1e6);
+        final int lat = (int) Math.round(trk.getLat() * 1e6);
+
+        int i = indexOf(simNo);
+        if (i < 0) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                rehash();
+                i = indexOf(simNo);
+            }
+
+            i = -i - 1;
+            keys[i] = simNo;
+            size++;
+            store(i, gpsTm, lng, lat, trk);
+            return true;
+        }
+
+        boolean changed = gpsTm - gpsTms[i] >= config.maxSilenceMillis()
+                || trk.getAlm() != alms[i]
+                || trk.getSt() != sts[i]
+                || Math.abs(trk.getSpd() - spds[i]) >= config.minSpdDelta()
+                || angleDelta(trk.getDir(), dirs[i]) >= config.minDirDelta();
+
+        if (!changed) {
+            // equirectangular approximation, accurate enough for the short distances compared here
+            double dy = (lat - lats[i]) * METERS_PER_MICRO_DEGREE;
+            double dx = (lng - lngs[i]) * METERS_PER_MICRO_DEGREE * Math.cos(Math.toRadians(lat / 1e6));
+            changed = dx * dx + dy * dy > minMoveMetersSq;
+        }
+
+        if (changed)
+            store(i, gpsTm, lng, lat, trk);
+
+        return changed;
+    }
+
+    /**
+     * @return 有状态的终端数
+     */
+    public int size() {
+        return size;
+    }
+}
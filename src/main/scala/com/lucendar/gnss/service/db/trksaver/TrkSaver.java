@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trksaver;
+
+import com.lucendar.gnss.service.db.AsyncBatchWriter;
+import com.lucendar.gnss.service.db.BatchWriterConfig;
+import com.lucendar.gnss.service.db.trk.LatestTrkCoalescer;
+import com.lucendar.gnss.service.db.trk.TrkDao;
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * 轨迹保存器。
+ * <p>
+ * 通过 `submit()` 提交的轨迹按 simNo 分派到各写入线程，按批写入 `TrkDao.bulkSaveLatestTrks()` 和
+ * `TrkDao.bulkSaveHisTrks()`。同一终端的轨迹总是由同一个写入线程按提交顺序写入。
+ * <p>
+ * 若配置了 `TrkDeadBandConfig`，轨迹先经每个写入线程独立的 `TrkDeadBandFilter` 过滤，停车时没有变化的轨迹不写入实时轨迹表和历史轨迹表。
+ * <p>
+ * 实时轨迹写入前经 `LatestTrkCoalescer` 合并，每个终端只写入最新的一条；写入失败的实时轨迹会与下一批合并后重试。
+ * `close()` 在写入线程退出后再尝试写入一次仍待重试的实时轨迹。
+ * <p>
+ * 指标（可选）：
+ * <ul>
+ *     <li>histogram: 每批写入耗时，单位：秒</li>
+ *     <li>successTrkCounter: 成功写入的轨迹数</li>
+ *     <li>failureTrkCounter: 写入失败的轨迹数。实时轨迹写入失败时整批计入；历史轨迹按 `TrkDao.saveHisTrks()` 报告的未保存数计入，
+ *     包括已转存待重放和放入死信存储的轨迹</li>
+ *     <li>suppressedTrkCounter: 被死区过滤器过滤的轨迹数</li>
+ * </ul>
+ */
+public class TrkSaver extends AsyncBatchWriter<Trk> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.trkSaver");
+
+    private final TrkDao trkDao;
+    private final TrkSaverMetrics metrics;
+    private final boolean saveLatest;
+    private final boolean saveHis;
+
+    // per writer
+    private final Trk[][] buffers;
+    private final Trk[][] latestBuffers;
+    private final LatestTrkCoalescer[] coalescers;
+    private final TrkDeadBandFilter[] deadBandFilters;
+
+    /**
+     * @param trkDao     轨迹 DAO
+     * @param config     写入器配置
+     * @param metrics    指标，为 null 时不记录指标
+     * @param saveLatest 是否保存实时轨迹
+     * @param saveHis    是否保存历史轨迹
+     * @param deadBand   死区过滤配置，为 null 时不过滤
+     */
+    public TrkSaver(@NonNull TrkDao trkDao,
+                    @NonNull BatchWriterConfig config,
+                    @Nullable TrkSaverMetrics metrics,
+                    boolean saveLatest,
+                    boolean saveHis,
+                    @Nullable TrkDeadBandConfig deadBand) {
+        super("trk-saver", config);
+        this.trkDao = trkDao;
+        this.metrics = metrics;
+        this.saveLatest = saveLatest;
+        this.saveHis = saveHis;
+        this.buffers = new Trk[config.writerCount()][];
+        this.latestBuffers = new Trk[config.writerCount()][];
+        this.coalescers = new LatestTrkCoalescer[config.writerCount()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new Trk[config.batchSize()];
+            latestBuffers[i] = new Trk[config.batchSize()];
+            coalescers[i] = new LatestTrkCoalescer();
+        }
+
+        if (deadBand != null) {
+            this.deadBandFilters = new TrkDeadBandFilter[config.writerCount()];
+            for (int i = 0; i < deadBandFilters.length; i++)
+                deadBandFilters[i] = new TrkDeadBandFilter(deadBand);
+        } else
+            this.deadBandFilters = null;
+    }
+
+    public TrkSaver(@NonNull TrkDao trkDao,
+                    @NonNull BatchWriterConfig config,
+                    @Nullable TrkSaverMetrics metrics,
+                    boolean saveLatest,
+                    boolean saveHis) {
+        this(trkDao, config, metrics, saveLatest, saveHis, null);
+    }
+
+    public TrkSaver(@NonNull TrkDao trkDao,
+                    @NonNull BatchWriterConfig config,
+                    @Nullable TrkSaverMetrics metrics) {
+        this(trkDao, config, metrics, true, true);
+    }
+
+    @Override
+    protected int shardOf(Trk trk) {
+        String simNo = trk.getSimNo();
+        return simNo != null ? simNo.hashCode() : 0;
+    }
+
+    private boolean saveLatest(int shard, Trk[] trks, int count) {
+        LatestTrkCoalescer coalescer = coalescers[shard];
+        for (int i = 0; i < count; i++)
+            coalescer.add(trks[i]);
+
+        Trk[] latest = latestBuffers[shard];
+        if (latest.length < coalescer.pendingCount()) {
+            latest = new Trk[coalescer.pendingCount()];
+            latestBuffers[shard] = latest;
+        }
+
+        int n = coalescer.drainTo(latest);
+        try {
+            trkDao.bulkSaveLatestTrks(latest, n);
+            coalescer.markSaved(latest, n);
+            return true;
+        } catch (Throwable t) {
+            coalescer.restore(latest, n);
+            LOGGER.error("Error occurred when save latest trks.", t);
+            return false;
+        } finally {
+            for (int i = 0; i < n; i++)
+                latest[i] = null;
+        }
+    }
+
+    /**
+     * Drop the unchanged trks in place.
+     *
+     * @return the count of remaining trks
+     */
+    private int filter(int shard, Trk[] trks, int count) {
+        TrkDeadBandFilter f = deadBandFilters[shard];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            Trk trk = trks[i];
+            trks[i] = null;
+            if (f.accept(trk))
+                trks[n++] = trk;
+        }
+
+        int suppressed = count - n;
+        if (suppressed > 0 && metrics != null && metrics.suppressedTrkCounter() != null)
+            metrics.suppressedTrkCounter().inc(suppressed);
+
+        return n;
+    }
+
+    @Override
+    protected void flush(int shard, @NonNull List<Trk> batch) {
+        final Trk[] trks = batch.toArray(buffers[shard]);
+        final int count = deadBandFilters != null ? filter(shard, trks, batch.size()) : batch.size();
+        if (count == 0)
+            return;
+
+        long start = System.nanoTime();
+        boolean latestSaved = true;
+        int hisFailed = 0;
+        try {
+            if (saveLatest)
+                latestSaved = saveLatest(shard, trks, count);
+
+            if (saveHis) {
+                try {
+                    hisFailed = trkDao.saveHisTrks(trks, count);
+                    if (hisFailed > 0)
+                        LOGGER.error("{} of {} history trks not saved.", hisFailed, count);
+                } catch (Throwable t) {
+                    hisFailed = count;
+                    LOGGER.error("Error occurred when save history trks.", t);
+                }
+            }
+        } finally {
+            for (int i = 0; i < count; i++)
+                trks[i] = null;
+        }
+
+        if (metrics != null) {
+            metrics.histogram().observe((System.nanoTime() - start) / 1e9);
+            int failed = latestSaved ? hisFailed : count;
+            if (failed < count)
+                metrics.successTrkCounter().inc(count - failed);
+            if (failed > 0)
+                metrics.failureTrkCounter().inc(failed);
+        }
+    }
+
+    /**
+     * 关闭保存器。写入线程退出后，将各 `LatestTrkCoalescer` 中仍待重试的实时轨迹再写入一次，失败时丢弃。
+     */
+    @Override
+    public void close() {
+        super.close();
+        if (!saveLatest)
+            return;
+
+        if (Thread.currentThread().isInterrupted()) {
+            LOGGER.warn("Interrupted when close, pending latest trks not saved.");
+            return;
+        }
+
+        // the writer threads have exited, the coalescers are no longer accessed concurrently
+        for (int shard = 0; shard < coalescers.length; shard++) {
+            int pending = coalescers[shard].pendingCount();
+            if (pending > 0 && !saveLatest(shard, buffers[shard], 0))
+                LOGGER.error("{} pending latest trks dropped on close.", pending);
+        }
+    }
+}
@@ -4,12 +4,20 @@
  */
 package com.lucendar.gnss.service.db.trksaver
 
-import io.prometheus.metrics.core.datapoints.Timer
 import io.prometheus.metrics.core.metrics.{Counter, Histogram}
+import org.checkerframework.checker.nullness.qual.Nullable
 
+/**
+ * `TrkSaver` 的指标
+ *
+ * @param histogram            每批写入耗时，单位：秒
+ * @param successTrkCounter    成功写入的轨迹数
+ * @param failureTrkCounter    写入失败的轨迹数
+ * @param suppressedTrkCounter 被死区过滤器过滤的轨迹数，可为 null
+ */
 case class TrkSaverMetrics(
                          histogram: Histogram,
-                         timer: Timer,
                          successTrkCounter: Counter,
-                         failureTrkCounter: Counter
+                         failureTrkCounter: Counter,
+                         @Nullable suppressedTrkCounter: Counter = null
                        )
@@ -28,6 +28,10 @@ public class RedisMemDb implements MemDb {
             this.localMemDb = null;
     }
 
+    public StringRedisTemplate getRedisTemplate() {
+        return redisTemplate;
+    }
+
     @Override
     public void set(@NonNull String keyPrefix, @NonNull String key, @NonNull String value, int ttl) {
         if (localMemDb != null) {
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.pos;
+
+/**
+ * 终端最新位置。作为 `LatestPosStore` 读取结果的容器，可重复使用以避免分配对象。
+ */
+public class LatestPos {
+    String simNo;
+    long gpsTm;
+    double lat;
+    double lng;
+    float spd;
+    int dir;
+    int alm;
+    int st;
+
+    public String getSimNo() {
+        return simNo;
+    }
+
+    /**
+     * @return 定位时间，epoch millis
+     */
+    public long getGpsTm() {
+        return gpsTm;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLng() {
+        return lng;
+    }
+
+    /**
+     * @return 速度，单位：km/h
+     */
+    public float getSpd() {
+        return spd;
+    }
+
+    public int getDir() {
+        return dir;
+    }
+
+    public int getAlm() {
+        return alm;
+    }
+
+    public int getSt() {
+        return st;
+    }
+
+    @Override
+    public String toString() {
+        return "LatestPos{" +
+                "simNo='" + simNo + '\'' +
+                ", gpsTm=" + gpsTm +
+                ", lat=" + lat +
+                ", lng=" + lng +
+                ", spd=" + spd +
+                ", dir=" + dir +
+                ", alm=" + alm +
+                ", st=" + st +
+                '}';
+    }
+}
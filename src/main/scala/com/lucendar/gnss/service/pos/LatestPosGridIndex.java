@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.pos;
+
+import com.lucendar.gnss.service.db.trk.LatestTrkListener;
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 终端最新位置的空间网格索引。
+ * <p>
+ * 按经纬度将地图划分为等大小的网格，每个网格保存位于其中的终端在 `LatestPosStore` 中的槽位（写时复制的 int 数组）。
+ * 终端位置更新时，若所在网格改变，则将其从原网格移到新网格；同一终端的读取位置和移动网格以该终端为粒度串行执行，
+ * 并发的更新不会将终端留在过时的网格中。查询时只扫描与查询范围相交的网格，并用
+ * `LatestPosStore` 中的位置精确过滤，因此查询不加锁。
+ * <p>
+ * 通过 `TrkDao_Pg.addLatestTrkListener()` 注册，且必须在 `LatestPosStore` 之后注册。`LatestPosStore.warmUp()` 之后
+ * 调用 `rebuild()` 建立初始索引。
+ */
+public class LatestPosGridIndex implements LatestTrkListener {
+
+    /**
+     * 默认网格大小，单位：度。约 1.1km
+     */
+    public static final double DEFAULT_CELL_DEGREES = 0.01;
+
+    private static final double METERS_PER_DEGREE = 111_320.0;
+    private static final double EARTH_RADIUS_METERS = 6_371_008.8;
+    private static final int[] EMPTY = new int[0];
+
+    private static class Cell {
+        volatile int[] slots = EMPTY;
+
+        synchronized void add(int slot) {
+            int[] cur = slots;
+            int[] r = Arrays.copyOf(cur, cur.length + 1);
+            r[cur.length] = slot;
+            slots = r;
+        }
+
+        synchronized void remove(int slot) {
+            int[] cur = slots;
+            for (int i = 0; i < cur.length; i++) {
+                if (cur[i] == slot) {
+                    int[] r = new int[cur.length - 1];
+                    System.arraycopy(cur, 0, r, 0, i);
+                    System.arraycopy(cur, i + 1, r, i, cur.length - i - 1);
+                    slots = r;
+                    return;
+                }
+            }
+        }
+    }
+
+    private final LatestPosStore store;
+    private final double cellDegrees;
+    private final long cols;
+    private final ConcurrentHashMap<Long, Cell> cells = new ConcurrentHashMap<>();
+    // simNo -> key of the cell holding the terminal, compute() serializes the updates of a terminal
+    private final ConcurrentHashMap<String, Long> cellOfSimNo = new ConcurrentHashMap<>();
+
+    /**
+     * @param store       终端最新位置存储
+     * @param cellDegrees 网格大小，单位：度
+     */
+    public LatestPosGridIndex(@NonNull LatestPosStore store, double cellDegrees) {
+        if (!(cellDegrees > 0 && cellDegrees <= 90))
+            throw new IllegalArgumentException("Invalid cellDegrees: " + cellDegrees + ".");
+
+        this.store = store;
+        this.cellDegrees = cellDegrees;
+        this.cols = (long) Math.ceil(360.0 / cellDegrees) + 1;
+    }
+
+    public LatestPosGridIndex(@NonNull LatestPosStore store) {
+        this(store, DEFAULT_CELL_DEGREES);
+    }
+
+    public double getCellDegrees() {
+        return cellDegrees;
+    }
+
+    private long col(double lng) {
+        return (long) Math.floor((lng + 180.0) / cellDegrees);
+    }
+
+    private long row(double lat) {
+        return (long) Math.floor((lat + 90.0) / cellDegrees);
+    }
+
+    private long cellKey(double lng, double lat) {
+        return row(lat) * cols + col(lng);
+    }
+
+    /**
+     * Move the terminal to the cell of its position in the store. The position is read inside `compute()`, so a
+     * concurrent update of the same terminal cannot place it by an older position after a newer one.
+     */
+    private void place(String simNo, int slot, LatestPos pos) {
+        cellOfSimNo.compute(simNo, (k, old) -> {
+            if (!store.read(slot, pos))
+                return old;
+
+            long key = cellKey(pos.lng, pos.lat);
+            if (old != null && old == key)
+                return old;
+
+            if (old != null) {
+                Cell c = cells.get(old);
+                if (c != null)
+                    c.remove(slot);
+            }
+            cells.computeIfAbsent(key, x -> new Cell()).add(slot);
+            return key;
+        });
+    }
+
+    @Override
+    public void onLatestTrksSaved(Trk[] trks, int count) {
+        var pos = new LatestPos();
+        for (int i = 0; i < count; i++) {
+            String simNo = trks[i].getSimNo();
+            if (simNo == null)
+                continue;
+
+            // index the position accepted by the store, which ignores stale retransmissions
+            int slot = store.slotOf(simNo);
+            if (slot >= 0)
+                place(simNo, slot, pos);
+        }
+    }
+
+    /**
+     * 按 `LatestPosStore` 中的全部位置重建索引
+     */
+    public void rebuild() {
+        var scratch = new LatestPos();
+        store.forEach((slot, pos) -> {
+            if (pos.simNo != null)
+                place(pos.simNo, slot, scratch);
+            return true;
+        });
+    }
+
+    /**
+     * 访问指定矩形范围内的终端位置
+     *
+     * @param minLng  最小经度
+     * @param minLat  最小纬度
+     * @param maxLng  最大经度
+     * @param maxLat  最大纬度
+     * @param visitor 位置访问器，返回 false 时停止访问
+     * @return 访问的位置数
+     */
+    public int visitInBox(double minLng, double minLat, double maxLng, double maxLat,
+                          @NonNull LatestPosStore.Visitor visitor) {
+        if (minLng > maxLng || minLat > maxLat)
+            return 0;
+
+        var pos = new LatestPos();
+        int n = 0;
+        long c0 = col(Math.max(minLng, -180.0)), c1 = col(Math.min(maxLng, 180.0));
+        long r0 = row(Math.max(minLat, -90.0)), r1 = row(Math.min(maxLat, 90.0));
+
+        // a large box covers more cells than are occupied, scan the occupied cells instead
+        if ((r1 - r0 + 1) * (c1 - c0 + 1) > cells.size()) {
+            for (var e : cells.entrySet()) {
+                long key = e.getKey();
+                long r = key / cols, c = key % cols;
+                if (r < r0 || r > r1 || c < c0 || c > c1)
+                    continue;
+
+                n = visitCell(e.getValue(), minLng, minLat, maxLng, maxLat, pos, visitor, n);
+                if (n < 0)
+                    return -n - 1;
+            }
+            return n;
+        }
+
+        for (long r = r0; r <= r1; r++) {
+            for (long c = c0; c <= c1; c++) {
+                Cell cell = cells.get(r * cols + c);
+                if (cell == null)
+                    continue;
+
+                n = visitCell(cell, minLng, minLat, maxLng, maxLat, pos, visitor, n);
+                if (n < 0)
+                    return -n - 1;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * @return the updated visited count, or `-count - 1` if the visitor stopped
+     */
+    private int visitCell(Cell cell, double minLng, double minLat, double maxLng, double maxLat,
+                          LatestPos pos, LatestPosStore.Visitor visitor, int n) {
+        for (int slot : cell.slots) {
+            if (store.read(slot, pos) &&
+                    pos.lng >= minLng && pos.lng <= maxLng && pos.lat >= minLat && pos.lat <= maxLat) {
+                n++;
+                if (!visitor.visit(slot, pos))
+                    return -n - 1;
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * 查询指定矩形范围内的终端位置
+     *
+     * @return 位置列表
+     */
+    public List<LatestPos> findInBox(double minLng, double minLat, double maxLng, double maxLat) {
+        var r = new ArrayList<LatestPos>();
+        visitInBox(minLng, minLat, maxLng, maxLat, (slot, pos) -> {
+            r.add(copyOf(pos));
+            return true;
+        });
+        return r;
+    }
+
+    /**
+     * 访问距指定点不超过指定距离的终端位置
+     *
+     * @param lng          经度
+     * @param lat          纬度
+     * @param radiusMeters 距离，单位：米
+     * @param visitor      位置访问器，返回 false 时停止访问
+     * @return 访问的位置数
+     */
+    public int visitWithin(double lng, double lat, double radiusMeters, @NonNull LatestPosStore.Visitor visitor) {
+        double dLat = radiusMeters / METERS_PER_DEGREE;
+        double cosLat = Math.cos(Math.toRadians(Math.min(Math.abs(lat) + dLat, 90.0)));
+        double dLng = cosLat > 1e-9 ? Math.min(radiusMeters / (METERS_PER_DEGREE * cosLat), 180.0) : 180.0;
+
+        int[] n = {0};
+        visitInBox(lng - dLng, lat - dLat, lng + dLng, lat + dLat, (slot, pos) -> {
+            if (distanceMeters(lng, lat, pos.lng, pos.lat) > radiusMeters)
+                return true;
+
+            n[0]++;
+            return visitor.visit(slot, pos);
+        });
+        return n[0];
+    }
+
+    /**
+     * 查询距指定点不超过指定距离的终端位置
+     *
+     * @return 位置列表
+     */
+    public List<LatestPos> findWithin(double lng, double lat, double radiusMeters) {
+        var r = new ArrayList<LatestPos>();
+        visitWithin(lng, lat, radiusMeters, (slot, pos) -> {
+            r.add(copyOf(pos));
+            return true;
+        });
+        return r;
+    }
+
+    private static LatestPos copyOf(LatestPos pos) {
+        var r = new LatestPos();
+        r.simNo = pos.simNo;
+        r.gpsTm = pos.gpsTm;
+        r.lat = pos.lat;
+        r.lng = pos.lng;
+        r.spd = pos.spd;
+        r.dir = pos.dir;
+        r.alm = pos.alm;
+        r.st = pos.st;
+        return r;
+    }
+
+    /**
+     * 两点间的球面距离（haversine）
+     *
+     * @return 距离，单位：米
+     */
+    public static double distanceMeters(double lng1, double lat1, double lng2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+                Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.pos;
+
+import com.lucendar.gnss.service.db.trk.LatestTrkListener;
+import com.lucendar.gnss.service.db.trk.TrkCursor;
+import com.lucendar.gnss.service.db.trk.TrkDao;
+import info.gratour.jt808common.protocol.msg.types.trk.Trk;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 进程内的终端最新位置存储。
+ * <p>
+ * 每个终端按 simNo 分配一个固定的槽位，位置数据以定长记录保存在堆外内存中，不为每个终端创建对象（30 万终端约占 14MB
+ * 堆外内存）。每个槽位使用顺序锁（seqlock）保护：写入时序号为奇数，读取方在序号不变时才接受读到的数据，因此读取不加锁。
+ * <p>
+ * 通过 `TrkDao_Pg.addLatestTrkListener()` 注册后，与 `bulkSaveLatestTrks()` 同步更新；启动时可调用 `warmUp()`
+ * 从 `t_latest_trk` 加载。定位时间早于已保存位置的轨迹（补传）被忽略。
+ * <p>
+ * 槽位一经分配不会回收，容量用尽后新终端的位置不再保存。
+ */
+public class LatestPosStore implements LatestTrkListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger("gnss.latestPosStore");
+
+    // slot layout, 8-byte aligned
+    private static final int OFF_SEQ = 0;
+    private static final int OFF_GPS_TM = 8;
+    private static final int OFF_LAT = 16;
+    private static final int OFF_LNG = 24;
+    private static final int OFF_SPD = 32;
+    private static final int OFF_DIR = 36;
+    private static final int OFF_ALM = 40;
+    private static final int OFF_ST = 44;
+    private static final int STRIDE = 48;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int WARM_UP_FETCH_SIZE = 5000;
+
+    private final int capacity;
+    private final ByteBuffer buf;
+    private final ConcurrentHashMap<String, Integer> slots = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<String> simNos;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    private volatile boolean fullWarned;
+
+    /**
+     * @param capacity 最多保存的终端数
+     */
+    public LatestPosStore(int capacity) {
+        if (capacity <= 0 || (long) capacity * STRIDE > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid capacity: " + capacity + ".");
+
+        this.capacity = capacity;
+        this.buf = ByteBuffer.allocateDirect(capacity * STRIDE).order(ByteOrder.nativeOrder());
+        this.simNos = new AtomicReferenceArray<>(capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 已分配槽位的终端数
+     */
+    public int size() {
+        return Math.min(nextSlot.get(), capacity);
+    }
+
+    /**
+     * 取终端的槽位
+     *
+     * @param simNo 终端识别号
+     * @return 槽位，终端没有槽位时返回 -1
+     */
+    public int slotOf(@NonNull String simNo) {
+        Integer slot = slots.get(simNo);
+        return slot != null ? slot : -1;
+    }
+
+    private int allocSlot(String simNo) {
+        Integer slot = slots.get(simNo);
+        if (slot != null)
+            return slot;
+
+        if (nextSlot.get() >= capacity)
+            slot = -1;
+        else
+            slot = slots.computeIfAbsent(simNo, k -> {
+                int s = nextSlot.getAndIncrement();
+                if (s >= capacity)
+                    return -1;
+
+                simNos.set(s, k);
+                return s;
+            });
+
+        if (slot < 0) {
+            // do not keep the terminals out of capacity in the map
+            slots.remove(simNo, slot);
+            if (!fullWarned) {
+                fullWarned = true;
+                LOGGER.warn("LatestPosStore is full (capacity = {}), positions of new terminals are dropped.", capacity);
+            }
+        }
+
+        return slot;
+    }
+
+    /**
+     * 更新终端位置。定位时间为 null 或早于已保存位置的轨迹被忽略。
+     *
+     * @param trk 轨迹
+     * @return 是否已更新
+     */
+    public boolean update(@NonNull Trk trk) {
+        String simNo = trk.getSimNo();
+        Long gpsTm = trk.getGpsTm();
+        if (simNo == null || gpsTm == null)
+            return false;
+
+        int slot = allocSlot(simNo);
+        if (slot < 0)
+            return false;
+
+        final int base = slot * STRIDE;
+
+        // acquire the slot: turn the sequence from even to odd
+        long seq;
+        for (; ; ) {
+            seq = (long) LONG_VIEW.getVolatile(buf, base + OFF_SEQ);
+            if ((seq & 1) == 0 && LONG_VIEW.compareAndSet(buf, base + OFF_SEQ, seq, seq + 1))
+                break;
+            Thread.onSpinWait();
+        }
+
+        boolean updated = false;
+        try {
+            if (seq == 0 || buf.getLong(base + OFF_GPS_TM) <= gpsTm) {
+                buf.putLong(base + OFF_GPS_TM, gpsTm);
+                buf.putDouble(base + OFF_LAT, trk.getLat());
+                buf.putDouble(base + OFF_LNG, trk.getLng());
+                buf.putFloat(base + OFF_SPD, trk.getSpd());
+                buf.putInt(base + OFF_DIR, trk.getDir());
+                buf.putInt(base + OFF_ALM, trk.getAlm());
+                buf.putInt(base + OFF_ST, trk.getSt());
+                updated = true;
+            }
+        } finally {
+            LONG_VIEW.setRelease(buf, base + OFF_SEQ, seq + 2);
+        }
+
+        return updated;
+    }
+
+    @Override
+    public void onLatestTrksSaved(Trk[] trks, int count) {
+        for (int i = 0; i < count; i++)
+            update(trks[i]);
+    }
+
+    /**
+     * 读取槽位中的位置
+     *
+     * @param slot 槽位
+     * @param dest 接收位置的对象
+     * @return 槽位是否有位置
+     */
+    public boolean read(int slot, @NonNull LatestPos dest) {
+        if (slot < 0 || slot >= capacity)
+            return false;
+
+        final int base = slot * STRIDE;
+        for (; ; ) {
+            long seq = (long) LONG_VIEW.getAcquire(buf, base + OFF_SEQ);
+            if (seq == 0)
+                return false;
+
+            if ((seq & 1) == 0) {
+                dest.gpsTm = buf.getLong(base + OFF_GPS_TM);
+                dest.lat = buf.getDouble(base + OFF_LAT);
+                dest.lng = buf.getDouble(base + OFF_LNG);
+                dest.spd = buf.getFloat(base + OFF_SPD);
+                dest.dir = buf.getInt(base + OFF_DIR);
+                dest.alm = buf.getInt(base + OFF_ALM);
+                dest.st = buf.getInt(base + OFF_ST);
+
+                VarHandle.acquireFence();
+                if ((long) LONG_VIEW.getVolatile(buf, base + OFF_SEQ) == seq) {
+                    dest.simNo = simNos.get(slot);
+                    return true;
+                }
+            }
+
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * 读取终端位置
+     *
+     * @param simNo 终端识别号
+     * @param dest  接收位置的对象
+     * @return 是否有该终端的位置
+     */
+    public boolean get(@NonNull String simNo, @NonNull LatestPos dest) {
+        return read(slotOf(simNo), dest);
+    }
+
+    /**
+     * 读取终端位置
+     *
+     * @param simNo 终端识别号
+     * @return 终端位置，无该终端的位置时返回 null
+     */
+    @Nullable
+    public LatestPos get(@NonNull String simNo) {
+        var r = new LatestPos();
+        return get(simNo, r) ? r : null;
+    }
+
+    /**
+     * 批量读取终端位置
+     *
+     * @param simNos 终端识别号数组
+     * @param dest   接收位置的数组，与 `simNos` 一一对应。元素为 null 时自动创建
+     * @return 读取到位置的终端数。无位置的终端，对应的 `dest` 元素被置为 null
+     */
+    public int getAll(@NonNull String[] simNos, @NonNull LatestPos[] dest) {
+        int n = 0;
+        for (int i = 0; i < simNos.length; i++) {
+            LatestPos pos = dest[i];
+            if (pos == null)
+                pos = new LatestPos();
+
+            if (get(simNos[i], pos)) {
+                dest[i] = pos;
+                n++;
+            } else
+                dest[i] = null;
+        }
+
+        return n;
+    }
+
+    /**
+     * 位置访问器
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        /**
+         * @param slot 槽位
+         * @param pos  位置。调用返回后该对象被复用，不应保留其引用
+         * @return 是否继续访问
+         */
+        boolean visit(int slot, LatestPos pos);
+    }
+
+    /**
+     * 遍历所有位置
+     *
+     * @param visitor 位置访问器
+     */
+    public void forEach(@NonNull Visitor visitor) {
+        var pos = new LatestPos();
+        int n = size();
+        for (int slot = 0; slot < n; slot++) {
+            if (read(slot, pos) && !visitor.visit(slot, pos))
+                return;
+        }
+    }
+
+    /**
+     * 从 `t_latest_trk` 加载终端位置
+     *
+     * @param trkDao 轨迹 DAO
+     * @return 加载的位置数
+     */
+    public int warmUp(@NonNull TrkDao trkDao) {
+        int n = 0;
+        try (TrkCursor cursor = trkDao.openLatestTrkCursor(WARM_UP_FETCH_SIZE)) {
+            while (cursor.hasNext()) {
+                if (update(cursor.next()))
+                    n++;
+            }
+        }
+
+        LOGGER.info("{} latest positions loaded.", n);
+        return n;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2024  lucendar.com.
+ * All rights reserved.
+ */
+package com.lucendar.gnss.service.db.trk
+
+import com.google.gson.Gson
+import com.lucendar.common.db.types.SqlDialect
+import com.typesafe.scalalogging.Logger
+import info.gratour.jt808common.protocol.msg.types.trk.Trk
+import org.checkerframework.checker.nullness.qual.NonNull
+import org.postgresql.ds.PGSimpleDataSource
+
+import javax.sql.DataSource
+
+/**
+ * Benchmark of the `LatestTrkWriteMode`s: writes batches of distinct terminals through
+ * `TrkDao_Pg.bulkSaveLatestTrks()` with each mode and logs the mean time per batch.
+ *
+ * The benchmark overwrites the rows of the generated terminals (`BENCH` + sequence) in `t_latest_trk`, run it against a
+ * test database only.
+ *
+ * It lives in the test source set so it's not shipped in the jar, and it's not a JUnit test, run its `main()` with the
+ * test runtime classpath.
+ *
+ * Run with system properties:
+ * <ul>
+ *   <li>`bench.url`: JDBC URL, required</li>
+ *   <li>`bench.user`, `bench.password`: database user and password</li>
+ *   <li>`bench.sqlDialect`: class name of the `SqlDialect` implementation (a Scala object or a class with a no-arg
+ *   constructor), required</li>
+ *   <li>`bench.sizes`: comma separated batch sizes, default `1000,10000,50000`</li>
+ *   <li>`bench.rounds`: measured rounds per size and mode, default 5</li>
+ * </ul>
+ */
+object LatestTrkWriteBenchmark {
+
+  private final val LOGGER = Logger("gnss.latestTrkWriteBenchmark")
+
+  final val DefaultSizes: Array[Int] = Array(1000, 10000, 50000)
+  final val DefaultRounds = 5
+
+  private final val WarmUpRounds = 2
+
+  def main(args: Array[String]): Unit = {
+    val url = System.getProperty("bench.url")
+    val dialectClass = System.getProperty("bench.sqlDialect")
+    require(url != null, "System property bench.url is required.")
+    require(dialectClass != null, "System property bench.sqlDialect is required.")
+
+    val ds = new PGSimpleDataSource
+    ds.setUrl(url)
+    ds.setUser(System.getProperty("bench.user"))
+    ds.setPassword(System.getProperty("bench.password"))
+
+    val sizes = Option(System.getProperty("bench.sizes"))
+      .map(_.split(',').map(_.trim.toInt))
+      .getOrElse(DefaultSizes)
+    val rounds = Integer.getInteger("bench.rounds", DefaultRounds)
+
+    run(ds, sqlDialectOf(dialectClass), sizes, rounds)
+  }
+
+  private def sqlDialectOf(className: String): SqlDialect = {
+    val clazz = Class.forName(className)
+    val module =
+      try clazz.getField("MODULE$").get(null)
+      catch {
+        case _: NoSuchFieldException => clazz.getDeclaredConstructor().newInstance()
+      }
+    module.asInstanceOf[SqlDialect]
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param ds         data source
+   * @param sqlDialect SQL dialect
+   * @param sizes      batch sizes
+   * @param rounds     measured rounds per size and mode
+   * @return mean milliseconds per batch, indexed by mode ordinal then by size index
+   */
+  def run(@NonNull ds: DataSource, @NonNull sqlDialect: SqlDialect, @NonNull sizes: Array[Int], rounds: Int): Array[Array[Double]] = {
+    require(rounds >= 1, "rounds")
+
+    val gson = new Gson
+    val modes = LatestTrkWriteMode.values()
+    val r = Array.ofDim[Double](modes.length, sizes.length)
+
+    for ((size, sizeIdx) <- sizes.zipWithIndex) {
+      val trks = newTrks(size)
+      for (mode <- modes) {
+        val dao = new TrkDao_Pg(ds, sqlDialect, gson, TrkDaoPgOptions.Default.withLatestTrkWriteMode(mode))
+        try {
+          for (_ <- 0 until WarmUpRounds)
+            saveOnce(dao, trks)
+
+          var total = 0L
+          for (_ <- 0 until rounds)
+            total += saveOnce(dao, trks)
+
+          val millis = total / 1e6 / rounds
+          r(mode.ordinal())(sizeIdx) = millis
+          LOGGER.info(f"$mode%-10s $size%6d rows: $millis%10.2f ms/batch, ${size * 1000 / millis}%10.0f rows/s")
+        } finally {
+          dao.close()
+        }
+      }
+    }
+
+    r
+  }
+
+  private def saveOnce(dao: TrkDao_Pg, trks: Array[Trk]): Long = {
+    // a new gpsTm each round, so every row is updated
+    val now = System.currentTimeMillis()
+    trks.foreach(trk => {
+      trk.setGpsTm(now)
+      trk.setRecvTm(now)
+    })
+
+    val start = System.nanoTime()
+    dao.bulkSaveLatestTrks(trks, trks.length)
+    System.nanoTime() - start
+  }
+
+  private def newTrks(count: Int): Array[Trk] =
+    Array.tabulate(count)(i => {
+      val trk = new Trk
+      trk.setSimNo(f"BENCH$i%07d")
+      trk.setLng(113.0 + (i % 1000) / 1000.0)
+      trk.setLat(23.0 + (i / 1000) / 1000.0)
+      trk.setAlt(10)
+      trk.setSpd(60.0f)
+      trk.setDir(i % 360)
+      trk
+    })
+}